@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Internal timer for all the server sent event clients, sending heartbeats to the ones
+ * that have not had anything written for a while (so dead connections are discovered)
+ * and closing the ones that have been idle for too long. Clients are spread over the
+ * slots of a wheel, and a single periodic task visits one slot per tick, so every client
+ * is checked once per revolution without a scheduled task of its own.
+ *
+ * @author Dave Syer
+ *
+ */
+class HeartbeatWheel {
+
+	private final List<Set<SseClient>> slots;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final long heartbeatMillis;
+
+	private final long idleMillis;
+
+	private final ScheduledFuture<?> task;
+
+	private int tick;
+
+	/**
+	 * @param scheduler the scheduler for the ticks
+	 * @param heartbeatMillis the interval between heartbeats (zero or negative for none)
+	 * @param idleMillis how long a client can go without a message before it is closed
+	 * (zero or negative for ever)
+	 * @param size the number of slots in the wheel
+	 */
+	public HeartbeatWheel(ScheduledExecutorService scheduler, long heartbeatMillis,
+			long idleMillis, int size) {
+		this.heartbeatMillis = heartbeatMillis;
+		this.idleMillis = idleMillis;
+		this.slots = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			slots.add(ConcurrentHashMap.newKeySet());
+		}
+		long revolution = heartbeatMillis > 0 ? heartbeatMillis : idleMillis;
+		if (revolution > 0) {
+			long period = Math.max(revolution / size, 1);
+			this.task = scheduler.scheduleAtFixedRate(this::tick, period, period,
+					TimeUnit.MILLISECONDS);
+		}
+		else {
+			this.task = null;
+		}
+	}
+
+	public void add(SseClient client) {
+		if (task != null) {
+			slots.get(Math.floorMod(next.getAndIncrement(), slots.size())).add(client);
+		}
+	}
+
+	public void stop() {
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Visit the clients in the next slot. Closed clients are only removed here, so there
+	 * is nothing to clean up when they close.
+	 */
+	void tick() {
+		tick(System.currentTimeMillis());
+	}
+
+	void tick(long now) {
+		Set<SseClient> slot = slots.get(tick);
+		tick = (tick + 1) % slots.size();
+		for (Iterator<SseClient> iterator = slot.iterator(); iterator.hasNext();) {
+			SseClient client = iterator.next();
+			if (client.isClosed()) {
+				iterator.remove();
+			}
+			else if (idleMillis > 0 && now - client.getLastMessage() >= idleMillis) {
+				client.expire();
+				iterator.remove();
+			}
+			// Each client is only visited once per revolution, so this keeps the gaps
+			// between writes under one and a half heartbeat intervals
+			else if (heartbeatMillis > 0
+					&& now - client.getLastWrite() >= heartbeatMillis / 2) {
+				client.heartbeat();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+/**
+ * A client sent a request parameter (filter, header or route pattern) that is not
+ * valid. The controller turns it into a 400 response.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+class InvalidRequestException extends RuntimeException {
+
+	InvalidRequestException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	InvalidRequestException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Internal incremental splitter for a JSON array, reading the top level elements one at
+ * a time from a {@link Reader}, without parsing the elements themselves. Each element is
+ * available as soon as it is complete, so the rest of the input does not have to be
+ * read (or even to have arrived) before it can be used. Strings are returned without
+ * their quotes (but with any escapes intact), and everything else as it is in the
+ * input.
+ *
+ * @author Dave Syer
+ *
+ */
+class JsonArrayReader implements Iterator<String> {
+
+	private final Reader reader;
+
+	private final char[] buffer = new char[8192];
+
+	private final StringBuilder builder = new StringBuilder();
+
+	private int position;
+
+	private int limit;
+
+	private String next;
+
+	private boolean done;
+
+	public JsonArrayReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Check if the input is a JSON array, consuming the opening bracket if it is. If it
+	 * is not an array there are no elements, but the input is available from
+	 * {@link #remainder()}.
+	 */
+	public boolean isArray() throws IOException {
+		if (skip(false) == '[') {
+			position++;
+			return true;
+		}
+		done = true;
+		return false;
+	}
+
+	/**
+	 * The rest of the input (trimmed), e.g. if it is not an array.
+	 */
+	public String remainder() throws IOException {
+		StringBuilder result = new StringBuilder();
+		while (peek() >= 0) {
+			result.append(buffer, position, limit - position);
+			position = limit;
+		}
+		return result.toString().trim();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				next = read();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			done = next == null;
+		}
+		return next != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String result = next;
+		next = null;
+		return result;
+	}
+
+	private String read() throws IOException {
+		int current = skip(true);
+		if (current < 0 || current == ']') {
+			return null;
+		}
+		builder.setLength(0);
+		if (current == '"') {
+			position++;
+			readString();
+		}
+		else if (current == '{' || current == '[') {
+			readNested();
+		}
+		else {
+			readPrimitive();
+		}
+		return builder.toString();
+	}
+
+	private void readString() throws IOException {
+		boolean escaped = false;
+		int current;
+		while ((current = peek()) >= 0) {
+			position++;
+			if (!escaped && current == '"') {
+				return;
+			}
+			escaped = !escaped && current == '\\';
+			builder.append((char) current);
+		}
+	}
+
+	private void readNested() throws IOException {
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		int current;
+		while ((current = peek()) >= 0) {
+			position++;
+			builder.append((char) current);
+			if (inString) {
+				if (!escaped && current == '"') {
+					inString = false;
+				}
+				escaped = !escaped && current == '\\';
+			}
+			else if (current == '"') {
+				inString = true;
+			}
+			else if (current == '{' || current == '[') {
+				depth++;
+			}
+			else if ((current == '}' || current == ']') && --depth == 0) {
+				return;
+			}
+		}
+	}
+
+	private void readPrimitive() throws IOException {
+		int current;
+		while ((current = peek()) >= 0 && current != ',' && current != ']') {
+			position++;
+			builder.append((char) current);
+		}
+		while (builder.length() > 0
+				&& Character.isWhitespace(builder.charAt(builder.length() - 1))) {
+			builder.setLength(builder.length() - 1);
+		}
+	}
+
+	/**
+	 * Skip whitespace (and optionally commas) and return the next character without
+	 * consuming it, or -1 at the end of the input.
+	 */
+	private int skip(boolean commas) throws IOException {
+		int current;
+		while ((current = peek()) >= 0
+				&& (Character.isWhitespace(current) || commas && current == ',')) {
+			position++;
+		}
+		return current;
+	}
+
+	private int peek() throws IOException {
+		if (position == limit) {
+			int count = reader.read(buffer);
+			if (count <= 0) {
+				return -1;
+			}
+			position = 0;
+			limit = count;
+		}
+		return buffer[position];
+	}
+
+}
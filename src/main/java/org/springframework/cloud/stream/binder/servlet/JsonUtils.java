@@ -15,6 +15,9 @@
  */
 package org.springframework.cloud.stream.binder.servlet;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,55 +35,53 @@ class JsonUtils {
 	 * themselves..
 	 */
 	public static List<String> split(String body) {
-		body = body.trim();
-		// it's an array
+		JsonArrayReader reader = new JsonArrayReader(new StringReader(body));
 		List<String> strings = new ArrayList<>();
-		int index = 0;
-		int open = 0;
-		boolean inString = false;
-		StringBuilder builder = new StringBuilder();
-		while (index++ < body.length() - 1) {
-			char current = body.charAt(index);
-			builder.append(current);
-			if (body.charAt(index - 1) != '\\') {
-				if (current == '"') {
-					if (!inString) {
-						open++;
-						inString = true;
-					}
-					else {
-						open--;
-						inString = false;
-					}
-				}
-				else if (current == '[') {
-					open++;
-				}
-				else if (current == ']') {
-					open--;
-				}
-				else if (current == '{') {
-					open++;
-				}
-				else if (current == '}') {
-					open--;
-				}
-			}
-			if (open == 0) {
-				if (builder.charAt(0) == '"') {
-					builder.delete(0, 1);
-					builder.delete(builder.length() - 1, builder.length());
-				}
-				strings.add(builder.toString());
-				builder.setLength(0);
-				while (index++ < body.length() - 1 && body.charAt(index) != ',') {
-				}
-				while (index++ < body.length() - 1
-						&& Character.isWhitespace(body.charAt(index))) {
-				}
-				index--;
+		try {
+			if (reader.isArray()) {
+				reader.forEachRemaining(strings::add);
 			}
 		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 		return strings;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Strip the quotes from a JSON string (leaving any escapes intact), in the same way
+	 * as the elements of an array are split. Anything else is returned unchanged.
+	 */
+	public static String unquote(String body) {
+		if (body.length() > 1 && body.startsWith("\"") && body.endsWith("\"")) {
+			return body.substring(1, body.length() - 1);
+		}
+		return body;
+	}
+
+	/**
+	 * Render a string payload as a single line of JSON. Strings that are already JSON
+	 * objects or arrays are kept as they are (apart from line breaks, which can only be
+	 * whitespace outside a JSON string), and anything else is quoted.
+	 */
+	public static String line(String body) {
+		String trimmed = body.trim();
+		if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+			return trimmed.replace('\r', ' ').replace('\n', ' ');
+		}
+		StringBuilder builder = new StringBuilder("\"");
+		for (int i = 0; i < body.length(); i++) {
+			char current = body.charAt(i);
+			if (current == '"' || current == '\\') {
+				builder.append('\\').append(current);
+			}
+			else if (current < ' ') {
+				builder.append(String.format("\\u%04x", (int) current));
+			}
+			else {
+				builder.append(current);
+			}
+		}
+		return builder.append('"').toString();
+	}
+}
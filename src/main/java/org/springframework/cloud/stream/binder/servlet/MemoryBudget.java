@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Internal limit on the memory used by all the route buffers together, so that one busy
+ * route cannot fill the heap. Each buffered message is charged for the size of its
+ * encoded payload (plus a fixed overhead). When the total is over the limit, space is
+ * reclaimed by evicting the oldest messages from the routes that are worth least: the
+ * ones that are read least often for the amount of memory they use. Read counts are
+ * halved each time space is reclaimed, so a route that was popular a long time ago does
+ * not keep its messages for ever.
+ *
+ * @author Dave Syer
+ *
+ */
+class MemoryBudget {
+
+	/**
+	 * A rough estimate of the memory used by a buffered message apart from its payload.
+	 */
+	static final int OVERHEAD = 256;
+
+	/**
+	 * The fraction of the limit to reclaim down to, so that space is not reclaimed again
+	 * as soon as the next message arrives.
+	 */
+	private static final double LOW_WATER = 0.9;
+
+	private final long limit;
+
+	private final Function<Object, byte[]> encoder;
+
+	private final AtomicLong used = new AtomicLong();
+
+	private final Set<RouteBuffer> buffers = ConcurrentHashMap.newKeySet();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * @param limit the maximum number of bytes for all the buffered messages
+	 * @param encoder an encoder for payloads that are not text or bytes (the result is
+	 * cached in the buffered message, so it is not wasted)
+	 */
+	public MemoryBudget(long limit, Function<Object, byte[]> encoder) {
+		this.limit = limit;
+		this.encoder = encoder;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * The number of bytes currently used by buffered messages.
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	public void register(RouteBuffer buffer) {
+		buffers.add(buffer);
+	}
+
+	public void unregister(RouteBuffer buffer) {
+		buffers.remove(buffer);
+	}
+
+	/**
+	 * The number of bytes to charge for a message.
+	 */
+	public long size(RouteBuffer.Entry entry) {
+		Object payload = entry.getMessage().getPayload();
+		if (payload instanceof byte[]) {
+			return OVERHEAD + ((byte[]) payload).length;
+		}
+		if (payload instanceof String) {
+			return OVERHEAD + 2L * ((String) payload).length();
+		}
+		return OVERHEAD + entry.getJson(encoder).length;
+	}
+
+	public void allocate(long bytes) {
+		if (used.addAndGet(bytes) > limit) {
+			reclaim();
+		}
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	/**
+	 * Evict messages until the memory used is comfortably under the limit. Only one
+	 * thread reclaims at a time, and the others carry on (briefly over the limit).
+	 */
+	void reclaim() {
+		if (!lock.tryLock()) {
+			return;
+		}
+		try {
+			long target = used.get() - (long) (limit * LOW_WATER);
+			if (target <= 0) {
+				return;
+			}
+			// Snapshot the values, since they change while sorting
+			Candidate[] candidates = buffers.stream().map(Candidate::new)
+					.toArray(Candidate[]::new);
+			Arrays.sort(candidates, Comparator.comparingDouble(Candidate::getValue));
+			for (Candidate candidate : candidates) {
+				if (target <= 0) {
+					break;
+				}
+				target -= candidate.buffer.evict(target);
+			}
+			for (RouteBuffer buffer : buffers) {
+				buffer.age();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Candidate {
+
+		private final RouteBuffer buffer;
+
+		private final double value;
+
+		Candidate(RouteBuffer buffer) {
+			this.buffer = buffer;
+			this.value = (buffer.getReads() + 1.0) / (buffer.getBytes() + 1.0);
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+	}
+
+}
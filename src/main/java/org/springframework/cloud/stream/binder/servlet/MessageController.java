@@ -15,34 +15,74 @@
  */
 package org.springframework.cloud.stream.binder.servlet;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.time.Duration;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
-import org.reactivestreams.Processor;
+import javax.servlet.http.HttpServletRequest;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.expression.ParseException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.integration.codec.Codec;
 import org.springframework.integration.core.MessagingTemplate;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.SubscribableChannel;
 import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.ObjectUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestAttribute;
@@ -51,24 +91,69 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.UnicastProcessor;
-
 /**
  * @author Dave Syer
  *
  */
 @RestController
 @RequestMapping("/${spring.cloud.stream.binder.servlet.prefix:stream}")
-public class MessageController implements RouteRegistrar {
+public class MessageController
+		implements RouteRegistrar, InitializingBean, DisposableBean {
 
 	public static final String ROUTE_KEY = "stream_routekey";
 
-	private final ConcurrentMap<String, Bridge<Message<?>>> queues = new ConcurrentHashMap<>();
+	public static final String SEQUENCE = "stream_sequence";
+
+	public static final String CORRELATION_ID = "stream_correlation";
+
+	/**
+	 * The header for the time (in milliseconds since the epoch) that a message sent to
+	 * an output channel expires, if it should not be the default for the route.
+	 */
+	public static final String EXPIRES = "stream_expires";
+
+	/**
+	 * The header sent by a server sent event client when it reconnects, with the id of
+	 * the last event it received.
+	 */
+	public static final String LAST_EVENT_ID = "Last-Event-ID";
+
+	public static final String NDJSON_VALUE = "application/x-ndjson";
+
+	public static final MediaType NDJSON = MediaType.valueOf(NDJSON_VALUE);
+
+	/**
+	 * The content type of server sent event responses (the events are formatted by hand,
+	 * so the emitter does not add it).
+	 */
+	private static final MediaType EVENT_STREAM = new MediaType(
+			MediaType.TEXT_EVENT_STREAM, StandardCharsets.UTF_8);
+
+	/**
+	 * The most that is allocated for a binary body before any of it has arrived.
+	 */
+	private static final int INITIAL_BODY = 64 * 1024;
+
+	private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	private final ConcurrentMap<String, RouteBuffer> queues = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Set<SseClient>> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * Server sent event clients subscribed to route key patterns, by channel.
+	 */
+	private final ConcurrentMap<String, RouteTrie<SseClient>> subscriptions = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Long, Exchange> exchanges = new ConcurrentHashMap<>();
 
-	private final ConcurrentMap<String, Set<SseEmitter>> emitters = new ConcurrentHashMap<>();
+	private final AtomicLong correlations = new AtomicLong();
 
 	private final Map<String, MessageChannel> inputs = new HashMap<>();
 
@@ -78,12 +163,81 @@ public class MessageController implements RouteRegistrar {
 
 	private final MessagingTemplate template = new MessagingTemplate();
 
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private final Map<String, ServletBindingProperties> bindingProperties = new HashMap<>();
+
+	private volatile Executor executor;
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private Codec codec;
+
+	private final MessageFilters filters = new MessageFilters();
+
+	private ExecutorService dispatcher;
+
+	private ExecutorService readers;
+
+	private ExecutorService writers;
+
+	private int sseQueueCapacity = 100;
+
+	private SseOverflow sseOverflow = SseOverflow.DROP_OLDEST;
+
+	private long sseFlushMillis;
+
+	private int sseFlushCount = 64;
+
+	private long sseHeartbeatSeconds = 15;
+
+	private long sseIdleTimeoutSeconds;
+
+	private long sseWriteTimeoutMillis = 10000;
+
+	private int sseWriterThreads = 64;
+
+	private long maxWaitMillis = 60000;
+
+	private HeartbeatWheel wheel;
+
+	private int concurrency = 1;
+
 	private String prefix;
 
 	public long timeoutSeconds = 10;
 
+	private int bufferCapacity = 1000;
+
+	private BufferOverflow bufferOverflow = BufferOverflow.OVERWRITE;
+
 	private long receiveTimeoutMillis;
 
+	private boolean durable;
+
+	private File durableDirectory = new File(System.getProperty("java.io.tmpdir"),
+			"servlet-binder");
+
+	private long durableSegmentBytes = 64 * 1024 * 1024;
+
+	private long durableRetentionBytes = 1024 * 1024 * 1024;
+
+	private int spillThreshold;
+
+	private long bufferMemoryBytes;
+
+	private long maxBodyBytes = 10 * 1024 * 1024;
+
+	private MemoryBudget budget;
+
+	private long routeIdleSeconds;
+
+	private int maxRoutes;
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	private TimingWheel<Runnable> expiry;
+
 	private Set<String> routes = new LinkedHashSet<>();
 
 	public MessageController(String prefix, EnabledBindings bindings) {
@@ -95,44 +249,344 @@ public class MessageController implements RouteRegistrar {
 		}
 		this.prefix = prefix;
 		this.bindings = bindings;
-		this.template.setReceiveTimeout(this.receiveTimeoutMillis);
+		CustomizableThreadFactory threads = new CustomizableThreadFactory(
+				"servlet-binder-");
+		threads.setDaemon(true);
+		this.scheduler = new ScheduledThreadPoolExecutor(1, threads);
+		this.scheduler.setRemoveOnCancelPolicy(true);
 	}
 
 	public void setReceiveTimeoutSeconds(long receiveTimeoutMillis) {
 		this.receiveTimeoutMillis = receiveTimeoutMillis;
-		this.template.setReceiveTimeout(receiveTimeoutMillis);
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public void setBindingProperties(Map<String, ServletBindingProperties> properties) {
+		this.bindingProperties.putAll(properties);
+	}
+
+	/**
+	 * The executor used to send payloads to input channels concurrently (if the
+	 * concurrency is greater than 1). Defaults to a fixed thread pool with one thread per
+	 * processor.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The object mapper used to encode buffered payloads as JSON.
+	 */
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * The codec used to store payloads that are not text or bytes in the logs of
+	 * durable routes and in spill files, so they are read back as the same type. Without
+	 * one they are stored as JSON.
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
 	}
 
 	public void setBufferTimeoutSeconds(long timeoutSeconds) {
 		this.timeoutSeconds = timeoutSeconds;
 	}
 
+	public void setBufferCapacity(int bufferCapacity) {
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	public void setBufferOverflow(BufferOverflow bufferOverflow) {
+		this.bufferOverflow = bufferOverflow;
+	}
+
+	public void setSseQueueCapacity(int sseQueueCapacity) {
+		this.sseQueueCapacity = sseQueueCapacity;
+	}
+
+	public void setSseOverflow(SseOverflow sseOverflow) {
+		this.sseOverflow = sseOverflow;
+	}
+
+	public void setSseFlushMillis(long sseFlushMillis) {
+		this.sseFlushMillis = sseFlushMillis;
+	}
+
+	public void setSseFlushCount(int sseFlushCount) {
+		this.sseFlushCount = sseFlushCount;
+	}
+
+	public void setSseHeartbeatSeconds(long sseHeartbeatSeconds) {
+		this.sseHeartbeatSeconds = sseHeartbeatSeconds;
+	}
+
+	public void setSseIdleTimeoutSeconds(long sseIdleTimeoutSeconds) {
+		this.sseIdleTimeoutSeconds = sseIdleTimeoutSeconds;
+	}
+
+	/**
+	 * How long a single write to a server sent event client can block before the client
+	 * is disconnected: nothing more is queued for it, and the response is completed when
+	 * the write returns. The write itself cannot be interrupted, so the writer thread is
+	 * only free again when the container gives up on the connection. Zero or negative
+	 * for no limit.
+	 */
+	public void setSseWriteTimeoutMillis(long sseWriteTimeoutMillis) {
+		this.sseWriteTimeoutMillis = sseWriteTimeoutMillis;
+	}
+
+	/**
+	 * The number of threads writing to server sent event clients. A stalled client holds
+	 * one of them until the container's own socket write timeout fails the write (the
+	 * write timeout here does not free it), so this is the number of stalled clients that
+	 * can be tolerated before the others are held up.
+	 */
+	public void setSseWriterThreads(int sseWriterThreads) {
+		this.sseWriterThreads = sseWriterThreads;
+	}
+
+	/**
+	 * The longest time that a GET with a <code>wait</code> parameter waits for a message
+	 * (longer waits are cut short to this). Zero or negative for no limit.
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Flag to say that the messages sent to output channels are kept in a log on disk
+	 * (unless the channel overrides it), so they survive a restart.
+	 */
+	public void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	public void setDurableDirectory(File durableDirectory) {
+		this.durableDirectory = durableDirectory;
+	}
+
+	public void setDurableSegmentBytes(long durableSegmentBytes) {
+		this.durableSegmentBytes = durableSegmentBytes;
+	}
+
+	public void setDurableRetentionBytes(long durableRetentionBytes) {
+		this.durableRetentionBytes = durableRetentionBytes;
+	}
+
+	/**
+	 * The maximum number of messages kept in memory for each route. Older ones (up to
+	 * the buffer capacity) are moved to a temporary file, and read back from there.
+	 * Zero or negative (the default) to keep them all in memory.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * The maximum number of bytes used by the messages in memory in all the route
+	 * buffers together. Zero or negative (the default) for no limit.
+	 */
+	public void setBufferMemoryBytes(long bufferMemoryBytes) {
+		this.bufferMemoryBytes = bufferMemoryBytes;
+	}
+
+	/**
+	 * The number of bytes used by the messages in memory in all the route buffers (only
+	 * measured if there is a limit).
+	 */
+	public long getBufferedBytes() {
+		MemoryBudget budget = getBudget();
+		return budget == null ? 0 : budget.getUsed();
+	}
+
+	public long getBufferMemoryBytes() {
+		return bufferMemoryBytes;
+	}
+
+	/**
+	 * The largest binary body that a POST can send (anything bigger is rejected with a
+	 * 413). Zero or negative for no limit.
+	 */
+	public void setMaxBodyBytes(long maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	/**
+	 * How long a route can go without messages being sent or read, and without
+	 * subscribers, before its buffer is removed (and any messages in it discarded). Zero
+	 * or negative (the default) to keep them for ever.
+	 */
+	public void setRouteIdleSeconds(long routeIdleSeconds) {
+		this.routeIdleSeconds = routeIdleSeconds;
+	}
+
+	/**
+	 * The maximum number of route buffers. If there are more, the ones that have been
+	 * used least recently (and have no subscribers) are removed. Zero or negative (the
+	 * default) for no limit.
+	 */
+	public void setMaxRoutes(int maxRoutes) {
+		this.maxRoutes = maxRoutes;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if (routeIdleSeconds > 0 || maxRoutes > 0) {
+			long period = routeIdleSeconds > 0
+					? Math.max(routeIdleSeconds * 1000 / 2, 100) : 1000;
+			scheduler.scheduleWithFixedDelay(this::sweep, period, period,
+					TimeUnit.MILLISECONDS);
+		}
+		File[] files = durableDirectory.listFiles(File::isDirectory);
+		if (files == null) {
+			return;
+		}
+		// Open the existing logs, so the messages in them can be read before any more
+		// are sent
+		for (File file : files) {
+			String path = decode(file.getName());
+			String name = path.substring(path.lastIndexOf("/") + 1);
+			if (isDurable(name)) {
+				queues.computeIfAbsent(path, id -> buffer(id, name));
+			}
+		}
+	}
+
+	@ExceptionHandler(InvalidRequestException.class)
+	public ResponseEntity<String> invalid(InvalidRequestException e) {
+		// A client sent a filter, header or pattern that is not valid
+		return ResponseEntity.badRequest().body(e.getMessage());
+	}
+
 	@GetMapping(path = "/**", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-	public ResponseEntity<SseEmitter> sse(
+	public ResponseEntity<ResponseBodyEmitter> sse(
 			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
-			@RequestHeader HttpHeaders headers) throws IOException {
+			@RequestHeader HttpHeaders headers,
+			@RequestParam(required = false) String filter) throws IOException {
 		Route route = output(path);
 		String channel = route.getChannel();
 		if (!bindings.getOutputs().contains(channel)) {
 			return org.springframework.http.ResponseEntity.notFound().build();
 		}
-		Message<Collection<Object>> message = poll(route.getChannel(), route.getKey(),
-				true);
-		SseEmitter body = emit(route, message);
+		if (isPattern(route)) {
+			// The events have to be named after their routes
+			return multiplex(
+					path.substring(0, path.length() - route.getKey().length() - 1),
+					Collections.singletonList(route.getKey()), headers, filter);
+		}
+		Predicate<Message<?>> predicate = filter(filter);
+		// Connect before polling so that nothing can be appended in between unseen
+		SseClient client = connect(route);
+		client.setFilter(predicate);
+		Message<List<RouteBuffer.Entry>> message = poll(route.getChannel(),
+				route.getKey(), true, lastEventId(headers), 0, 0);
+		client.start(message.getPayload());
 		return ResponseEntity.ok()
 				.headers(HeaderUtils.fromMessage(message.getHeaders(), headers))
-				.body(body);
+				.contentType(EVENT_STREAM).body(client.getEmitter());
+	}
+
+	@GetMapping(path = "/**", params = "route",
+			produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<ResponseBodyEmitter> multiplex(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			@RequestParam("route") List<String> keys, @RequestHeader HttpHeaders headers,
+			@RequestParam(required = false) String filter) throws IOException {
+		Predicate<Message<?>> predicate = filter(filter);
+		// Each route is relative to the path, and the events are named after it (or
+		// after the route key if it matched a pattern)
+		Map<String, Route> routes = new LinkedHashMap<>();
+		List<Route> patterns = new ArrayList<>();
+		Map<String, String> events = new LinkedHashMap<>();
+		for (String key : keys) {
+			key = key.trim();
+			if (key.length() == 0 || routes.containsKey(key)) {
+				continue;
+			}
+			Route route = output(path + "/" + key);
+			if (!bindings.getOutputs().contains(route.getChannel())) {
+				return org.springframework.http.ResponseEntity.notFound().build();
+			}
+			if (isPattern(route)) {
+				patterns.add(route);
+			}
+			else {
+				events.put(route.getPath(), key);
+			}
+			routes.put(key, route);
+		}
+		if (routes.isEmpty()) {
+			return org.springframework.http.ResponseEntity.badRequest().build();
+		}
+		Map<String, Long> seen = lastEventIds(headers);
+		Map<String, Long> cursors = new LinkedHashMap<>();
+		for (String name : events.values()) {
+			cursors.put(name, seen.getOrDefault(name, -1L));
+		}
+		seen.forEach(cursors::putIfAbsent);
+		// A cursor from the future (e.g. from before a restart) starts again at the end,
+		// like it does for a single route, instead of hiding the events until the
+		// sequence catches up
+		for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+			RouteBuffer buffer = queues.get(output(path + "/" + cursor.getKey()).getPath());
+			cursor.setValue(Math.min(cursor.getValue(),
+					buffer == null ? -1L : buffer.getSequence()));
+		}
+		Function<String, String> names = route -> events.containsKey(route)
+				? events.get(route)
+				: (route.contains("/") ? route.substring(0, route.lastIndexOf("/"))
+						: route);
+		Route first = routes.values().iterator().next();
+		SseClient client = connect(first.getChannel(), events.keySet(), patterns);
+		client.multiplex(names, cursors);
+		client.setFilter(predicate);
+		List<RouteBuffer.Entry> backlog = new ArrayList<>();
+		for (Route route : routes.values()) {
+			List<String> matches = patterns.contains(route)
+					? matching(route.getChannel(), route.getKey())
+					: Collections.singletonList(route.getKey());
+			for (String key : matches) {
+				String name = names.apply(new Route(key, route.getChannel()).getPath());
+				backlog.addAll(poll(route.getChannel(), key, true,
+						cursors.getOrDefault(name, -1L), 0, 0).getPayload());
+			}
+		}
+		client.start(backlog);
+		return ResponseEntity.ok().contentType(EVENT_STREAM).body(client.getEmitter());
 	}
 
 	@GetMapping("/**")
 	public ResponseEntity<Object> supplier(
 			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
 			@RequestHeader HttpHeaders headers,
-			@RequestParam(required = false) boolean purge) {
+			@RequestParam(required = false) boolean purge,
+			@RequestParam(defaultValue = "-1") long since,
+			@RequestParam(defaultValue = "0") int limit,
+			@RequestParam(defaultValue = "0") int last,
+			@RequestParam(required = false) String filter,
+			@RequestParam(required = false) List<String> header) {
+		Predicate<Message<?>> predicate = filter(filter);
+		Map<String, String> values = headers(header);
 		Route route = output(path);
 		String channel = route.getChannel();
+		if (bindings.getOutputs().contains(channel)
+				&& isPattern(route)) {
+			// All the routes that match, one after the other
+			List<RouteBuffer.Entry> entries = new ArrayList<>();
+			for (String key : matching(channel, route.getKey())) {
+				entries.addAll(poll(channel, key, !purge, since, limit, last, values,
+						predicate).getPayload());
+			}
+			return convert(MessageBuilder.withPayload(entries).build(), headers);
+		}
 		if (bindings.getOutputs().contains(channel)) {
-			Message<Collection<Object>> polled = poll(channel, route.getKey(), !purge);
+			Message<List<RouteBuffer.Entry>> polled = poll(channel, route.getKey(), !purge,
+					since, limit, last, values, predicate);
 			if (routes.contains(route.getKey()) || !polled.getPayload().isEmpty()
 					|| route.getKey() == null) {
 				return convert(polled, headers);
@@ -146,21 +600,204 @@ public class MessageController implements RouteRegistrar {
 		String body = route.getKey();
 		body = body.contains("/") ? body.substring(body.lastIndexOf("/") + 1) : body;
 		path = path.replaceAll("/" + body, "");
-		return string(path, body, headers);
+		// A GET has to be synchronous, but the replies will time out if they never come
+		return string(path, body, headers).join();
+	}
+
+	@GetMapping(path = "/**", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<Object> bytes(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			@RequestHeader HttpHeaders headers,
+			@RequestParam(required = false) boolean purge,
+			@RequestParam(defaultValue = "-1") long since,
+			@RequestParam(required = false) String filter,
+			@RequestParam(required = false) List<String> header) {
+		Route route = output(path);
+		String channel = route.getChannel();
+		if (!bindings.getOutputs().contains(channel)) {
+			return supplier(path, headers, purge, since, 0, 0, filter, header);
+		}
+		// Only one message at a time, so that its bytes can be the whole body (use the
+		// sequence header as a cursor to get the next one)
+		Message<List<RouteBuffer.Entry>> polled = poll(channel, route.getKey(), !purge,
+				since, 1, 0, headers(header), filter(filter));
+		if (polled.getPayload().isEmpty() && route.getKey() != null
+				&& !routes.contains(route.getKey())) {
+			// Not a known route, so it might be a GET to an input
+			return supplier(path, headers, purge, since, 0, 0, filter, header);
+		}
+		HttpHeaders responseHeaders = HeaderUtils.fromMessage(polled.getHeaders(),
+				headers);
+		if (polled.getPayload().isEmpty()) {
+			return ResponseEntity.noContent().headers(responseHeaders).build();
+		}
+		Object payload = polled.getPayload().get(0).getMessage().getPayload();
+		if (!(payload instanceof byte[])) {
+			payload = payload.toString().getBytes(StandardCharsets.UTF_8);
+		}
+		responseHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+		return new ResponseEntity<>(payload, responseHeaders, HttpStatus.OK);
+	}
+
+	@GetMapping(path = "/**", params = "wait")
+	public DeferredResult<ResponseEntity<Object>> await(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			@RequestHeader HttpHeaders headers,
+			@RequestParam(required = false) boolean purge,
+			@RequestParam(defaultValue = "-1") long since,
+			@RequestParam(defaultValue = "0") int limit,
+			@RequestParam(defaultValue = "0") int last, @RequestParam long wait,
+			@RequestParam(required = false) String filter,
+			@RequestParam(required = false) List<String> header) {
+		if (maxWaitMillis > 0) {
+			wait = Math.min(wait, maxWaitMillis);
+		}
+		// A timeout of zero would mean waiting for ever
+		DeferredResult<ResponseEntity<Object>> result = new DeferredResult<>(
+				Math.max(wait, 1));
+		Route route = output(path);
+		String channel = route.getChannel();
+		if (wait <= 0 || !bindings.getOutputs().contains(channel)
+				|| isPattern(route)
+				|| (route.getKey() != null && !routes.contains(route.getKey())
+						&& bindings.getInputs().contains(input(path).getChannel()))) {
+			// Not a route we can wait for, so it is a normal GET
+			result.setResult(
+					supplier(path, headers, purge, since, limit, last, filter, header));
+			return result;
+		}
+		String key = route.getPath();
+		Predicate<Message<?>> predicate = filter(filter);
+		Map<String, String> values = headers(header);
+		Waiter waiter = new Waiter(result, () -> poll(channel, route.getKey(), !purge,
+				since, limit, last, values, predicate), headers);
+		// Register before polling so that nothing can be appended in between unseen
+		register(waiters, key, waiter);
+		result.onCompletion(() -> unregister(waiters, key, waiter));
+		result.onTimeout(() -> waiter.complete(true));
+		waiter.complete(false);
+		return result;
 	}
 
 	@PostMapping(path = "/**", consumes = MediaType.TEXT_PLAIN_VALUE)
-	public ResponseEntity<Object> string(
+	public CompletableFuture<ResponseEntity<Object>> string(
 			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
 			@RequestBody String body, @RequestHeader HttpHeaders headers) {
 		return function(path, body, headers);
 	}
 
 	@PostMapping(path = "/**", consumes = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<Object> json(
+	public CompletableFuture<ResponseEntity<Object>> json(
 			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
-			@RequestBody String body, @RequestHeader HttpHeaders headers) {
-		return function(path, extract(body), headers);
+			InputStream body, @RequestHeader HttpHeaders headers) throws IOException {
+		Route route = input(path);
+		if (!inputs.containsKey(route.getChannel())) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+		}
+		// Read the elements of an array one at a time, sending each one as soon as it
+		// has arrived, instead of waiting for the whole body
+		JsonArrayReader reader = new JsonArrayReader(
+				new InputStreamReader(body, charset(headers)));
+		if (!reader.isArray()) {
+			return send(route, reader.remainder(), headers, null).getResult();
+		}
+		return send(route, reader, false, 0, headers, null).getResult();
+	}
+
+	@PostMapping(path = "/**", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public CompletableFuture<ResponseEntity<Object>> binary(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			HttpServletRequest request, @RequestHeader HttpHeaders headers)
+			throws IOException {
+		Route route = input(path);
+		if (!inputs.containsKey(route.getChannel())) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+		}
+		byte[] body = read(request.getInputStream(), request.getContentLengthLong());
+		if (body == null) {
+			return CompletableFuture.completedFuture(
+					ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build());
+		}
+		// A single payload (not an array of bytes to be split)
+		return send(route, Collections.singletonList(body).iterator(), true, 1, headers,
+				null).getResult();
+	}
+
+	/**
+	 * Read the whole body, or return null if it is bigger than the maximum.
+	 */
+	private byte[] read(InputStream body, long length) throws IOException {
+		long limit = maxBodyBytes > 0 ? Math.min(maxBodyBytes, MAX_ARRAY)
+				: MAX_ARRAY;
+		if (length > limit) {
+			return null;
+		}
+		// The length is only what the client says, so the array starts small and only
+		// grows as the bytes arrive (but a small body is read straight into an array of
+		// the right size)
+		byte[] bytes = new byte[(int) (length < 0 ? StreamUtils.BUFFER_SIZE
+				: Math.min(length, INITIAL_BODY))];
+		int offset = 0;
+		while (true) {
+			if (offset == bytes.length) {
+				if (offset == length) {
+					break;
+				}
+				if (offset >= limit) {
+					// Full, so anything else is too much
+					if (body.read() < 0) {
+						break;
+					}
+					return null;
+				}
+				long size = Math.max(offset * 2L, StreamUtils.BUFFER_SIZE);
+				if (length > offset) {
+					size = Math.min(size, length);
+				}
+				bytes = Arrays.copyOf(bytes, (int) Math.min(size, limit));
+			}
+			int count = body.read(bytes, offset, bytes.length - offset);
+			if (count < 0) {
+				break;
+			}
+			offset += count;
+		}
+		return offset == bytes.length ? bytes : Arrays.copyOf(bytes, offset);
+	}
+
+	@PostMapping(path = "/**", consumes = NDJSON_VALUE)
+	public CompletableFuture<ResponseEntity<Object>> ndjson(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			InputStream body, @RequestHeader HttpHeaders headers) {
+		Route route = input(path);
+		if (!inputs.containsKey(route.getChannel())) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+		}
+		// Each line is sent as soon as it has been read, like the elements of an array
+		return send(route, lines(new InputStreamReader(body, charset(headers))), false,
+				0, lines(headers), null).getResult();
+	}
+
+	/**
+	 * Each line of NDJSON is a JSON document, so that is the content type of the
+	 * messages.
+	 */
+	private HttpHeaders lines(HttpHeaders headers) {
+		HttpHeaders result = new HttpHeaders();
+		result.putAll(headers);
+		result.setContentType(new MediaType(MediaType.APPLICATION_JSON, charset(headers)));
+		return result;
+	}
+
+	private Iterator<String> lines(Reader reader) {
+		return new BufferedReader(reader).lines().map(String::trim)
+				.filter(line -> !line.isEmpty()).map(JsonUtils::unquote).iterator();
+	}
+
+	private Charset charset(HttpHeaders headers) {
+		MediaType type = headers.getContentType();
+		return type != null && type.getCharset() != null ? type.getCharset()
+				: StandardCharsets.UTF_8;
 	}
 
 	private Object extract(String body) {
@@ -173,23 +810,81 @@ public class MessageController implements RouteRegistrar {
 	}
 
 	@PostMapping("/**")
-	public ResponseEntity<Object> function(
+	public CompletableFuture<ResponseEntity<Object>> function(
 			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
 			@RequestBody Object body, @RequestHeader HttpHeaders headers) {
 		Route route = input(path);
-		String channel = route.getChannel();
-		if (!inputs.containsKey(channel)) {
+		if (!inputs.containsKey(route.getChannel())) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+		}
+		return send(route, body, headers, null).getResult();
+	}
+
+	@PostMapping(path = "/**", consumes = { MediaType.TEXT_PLAIN_VALUE,
+			MediaType.APPLICATION_JSON_VALUE, NDJSON_VALUE }, produces = { NDJSON_VALUE,
+					MediaType.TEXT_EVENT_STREAM_VALUE })
+	public ResponseEntity<ResponseBodyEmitter> stream(
+			@RequestAttribute("org.springframework.web.servlet.HandlerMapping.pathWithinHandlerMapping") String path,
+			InputStream body, @RequestHeader HttpHeaders headers) throws IOException {
+		Route route = input(path);
+		if (!inputs.containsKey(route.getChannel())) {
 			return ResponseEntity.notFound().build();
 		}
-		Collection<Object> collection;
+		MediaType type = streamType(headers);
+		ResponseBodyEmitter emitter = MediaType.TEXT_EVENT_STREAM.equals(type)
+				? new SseEmitter(Long.MAX_VALUE) : new ResponseBodyEmitter(Long.MAX_VALUE);
+		if (isNdjson(headers.getContentType())) {
+			// Each line is sent as soon as it has been read, as for a plain POST
+			send(route, lines(new InputStreamReader(body, charset(headers))), false,
+					0, lines(headers), emitter);
+		}
+		else {
+			// Like a plain POST, the elements of an array are sent as they arrive
+			JsonArrayReader elements = new JsonArrayReader(
+					new InputStreamReader(body, charset(headers)));
+			if (elements.isArray()) {
+				send(route, elements, false, 0, headers, emitter);
+			}
+			else {
+				send(route, elements.remainder(), headers, emitter);
+			}
+		}
+		HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.setContentType(type);
+		if (route.getKey() != null) {
+			responseHeaders.set(ROUTE_KEY, route.getKey());
+		}
+		return new ResponseEntity<>(emitter, responseHeaders, HttpStatus.OK);
+	}
+
+	private MediaType streamType(HttpHeaders headers) {
+		List<MediaType> accept = new ArrayList<>(headers.getAccept());
+		MediaType.sortBySpecificityAndQuality(accept);
+		for (MediaType type : accept) {
+			if (type.includes(NDJSON)) {
+				return NDJSON;
+			}
+			if (type.includes(MediaType.TEXT_EVENT_STREAM)) {
+				return MediaType.TEXT_EVENT_STREAM;
+			}
+		}
+		return NDJSON;
+	}
+
+	/**
+	 * Send the body to the input channel of the route, and return an exchange that
+	 * collects the replies. If there is an emitter the replies are written to it as they
+	 * arrive, instead of being collected into a single response.
+	 */
+	private Exchange send(Route route, Object body, HttpHeaders headers,
+			ResponseBodyEmitter emitter) {
+		Collection<?> collection;
 		boolean single = false;
 		if (body instanceof String) {
 			body = extract((String) body);
 		}
 		if (body instanceof Collection) {
-			@SuppressWarnings("unchecked")
-			Collection<Object> list = (Collection<Object>) body;
-			collection = list;
+			collection = (Collection<?>) body;
 		}
 		else {
 			if (ObjectUtils.isArray(body)) {
@@ -200,51 +895,190 @@ public class MessageController implements RouteRegistrar {
 				collection = Arrays.asList(body);
 			}
 		}
+		return send(route, collection.iterator(), single, collection.size(), headers,
+				emitter);
+	}
+
+	private Exchange send(Route route, Iterator<?> payloads, boolean single,
+			int expected, HttpHeaders headers, ResponseBodyEmitter emitter) {
+		String channel = route.getChannel();
 		Map<String, Object> messageHeaders = new HashMap<>(HeaderUtils.fromHttp(headers));
 		if (route.getKey() != null) {
 			messageHeaders.put(ROUTE_KEY, route.getKey());
 		}
 		MessageChannel input = inputs.get(channel);
-		Map<String, Object> outputHeaders = null;
-		List<Object> results = new ArrayList<>();
-		HttpStatus status = HttpStatus.ACCEPTED;
+		Exchange exchange = new Exchange(route, single, expected, headers, emitter);
 		// This is a total guess. We have no way to guarantee that the user will
 		// implement a Processor so that inputs always get an output, so either
 		// nothing might come back or there might be multiple outputs and we only get
 		// one of them.
 		if (this.outputs.containsKey(channel)) {
-			for (Object payload : collection) {
-				Message<?> result = template.sendAndReceive(input, MessageBuilder
-						.withPayload(payload).copyHeadersIfAbsent(messageHeaders)
-						.setHeader(MessageHeaders.REPLY_CHANNEL, outputs.get(channel))
-						.build());
-				if (result != null) {
-					if (outputHeaders == null) {
-						outputHeaders = new LinkedHashMap<>(result.getHeaders());
+			int concurrency = getConcurrency(channel);
+			if (emitter == null) {
+				dispatch(exchange, input, payloads, messageHeaders, concurrency);
+				return exchange;
+			}
+			// A streamed response is always sent from another thread, so that the
+			// emitter can start writing the replies as soon as they arrive. That thread
+			// reads the request body, so it can block for as long as the upload takes,
+			// and it is not one of the dispatcher threads that the sends need.
+			Runnable producer = () -> dispatch(exchange, input, payloads,
+					messageHeaders, concurrency);
+			try {
+				getReaders().execute(producer);
+			}
+			catch (RejectedExecutionException e) {
+				producer.run();
+			}
+			return exchange;
+		}
+		while (payloads.hasNext()) {
+			Object payload = payloads.next();
+			exchange.input(payload);
+			template.send(input, MessageBuilder.withPayload(payload)
+					.copyHeadersIfAbsent(messageHeaders).build());
+		}
+		exchange.accept(messageHeaders);
+		return exchange;
+	}
+
+	/**
+	 * Send the payloads to the input, each with its own correlation id, and start the
+	 * exchange when they have all been sent. If the concurrency is greater than 1 the
+	 * payloads are sent using up to <code>concurrency</code> tasks on the executor (and
+	 * the calling thread, if they are all busy), and the exchange puts the replies back
+	 * in order. Payloads are only taken from the iterator when there is a task free to
+	 * send them, so if they are being read from a request body, the upload is not read
+	 * any faster than the input can accept it.
+	 */
+	private void dispatch(Exchange exchange, MessageChannel input, Iterator<?> payloads,
+			Map<String, Object> messageHeaders, int concurrency) {
+		Semaphore permits = new Semaphore(concurrency - 1);
+		// One for the caller, and one for each task still sending
+		AtomicInteger pending = new AtomicInteger(1);
+		try {
+			while (!exchange.isDone() && payloads.hasNext()) {
+				Object payload = payloads.next();
+				Message<?> message = MessageBuilder.withPayload(payload)
+						.copyHeadersIfAbsent(messageHeaders)
+						.setHeader(CORRELATION_ID, exchange.add(payload)).build();
+				if (!permits.tryAcquire()) {
+					template.send(input, message);
+					continue;
+				}
+				pending.incrementAndGet();
+				Runnable task = () -> {
+					try {
+						template.send(input, message);
+					}
+					catch (RuntimeException e) {
+						exchange.fail(e);
 					}
-					results.add(result.getPayload());
+					finally {
+						permits.release();
+						if (pending.decrementAndGet() == 0) {
+							exchange.start();
+						}
+					}
+				};
+				try {
+					getExecutor().execute(task);
+				}
+				catch (RejectedExecutionException e) {
+					task.run();
 				}
 			}
-			status = HttpStatus.OK;
-			if (results.isEmpty()) {
-				// If nothing came back, just assume it was intentional, and say that
-				// we accepted the inputs.
-				status = HttpStatus.ACCEPTED;
-				results.addAll(collection);
+		}
+		catch (RuntimeException e) {
+			exchange.fail(e);
+			throw e;
+		}
+		finally {
+			if (pending.decrementAndGet() == 0) {
+				exchange.start();
 			}
 		}
-		else {
-			for (Object payload : collection) {
-				template.send(input, MessageBuilder.withPayload(payload)
-						.copyHeadersIfAbsent(messageHeaders).build());
+	}
+
+	private int getConcurrency(String channel) {
+		return getBindingProperty(channel, ServletBindingProperties::getConcurrency,
+				concurrency);
+	}
+
+	/**
+	 * The value of a setting for a channel, or the global value if the channel does not
+	 * override it.
+	 */
+	private <T> T getBindingProperty(String channel,
+			Function<ServletBindingProperties, T> getter, T value) {
+		ServletBindingProperties properties = bindingProperties.get(channel);
+		T result = properties == null ? null : getter.apply(properties);
+		return result != null ? result : value;
+	}
+
+	private Executor getExecutor() {
+		if (executor == null) {
+			synchronized (this) {
+				if (executor == null) {
+					dispatcher = pool("servlet-binder-dispatch-",
+							Runtime.getRuntime().availableProcessors());
+					executor = dispatcher;
+				}
 			}
-			outputHeaders = messageHeaders;
-			results.addAll(collection);
 		}
-		if (outputHeaders == null) {
-			outputHeaders = new LinkedHashMap<>();
+		return executor;
+	}
+
+	/**
+	 * The executor used to read request bodies for streamed replies. There is a thread
+	 * for each upload in progress, since each one can block waiting for the client.
+	 */
+	private synchronized Executor getReaders() {
+		if (readers == null) {
+			CustomizableThreadFactory threads = new CustomizableThreadFactory(
+					"servlet-binder-reader-");
+			threads.setDaemon(true);
+			readers = Executors.newCachedThreadPool(threads);
+		}
+		return readers;
+	}
+
+	/**
+	 * The executor used to write to server sent event clients.
+	 */
+	private synchronized Executor getWriters() {
+		if (writers == null) {
+			writers = pool("servlet-binder-sse-", Math.max(sseWriterThreads, 1));
+		}
+		return writers;
+	}
+
+	/**
+	 * The timer that sends heartbeats to all the server sent event clients, and closes
+	 * the idle ones.
+	 */
+	private synchronized HeartbeatWheel getWheel() {
+		if (wheel == null) {
+			wheel = new HeartbeatWheel(scheduler, sseHeartbeatSeconds * 1000,
+					sseIdleTimeoutSeconds * 1000, 64);
 		}
+		return wheel;
+	}
+
+	private ExecutorService pool(String prefix, int size) {
+		CustomizableThreadFactory threads = new CustomizableThreadFactory(prefix);
+		threads.setDaemon(true);
+		return Executors.newFixedThreadPool(size, threads);
+	}
+
+	private ResponseEntity<Object> response(HttpStatus status, Route route,
+			boolean single, List<Object> results, Map<String, Object> outputHeaders,
+			HttpHeaders headers) {
+		outputHeaders = outputHeaders == null ? new LinkedHashMap<>()
+				: new LinkedHashMap<>(outputHeaders);
 		outputHeaders.put(ROUTE_KEY, route.getKey());
+		outputHeaders.remove(CORRELATION_ID);
+		Object body;
 		if (single && results.size() == 1) {
 			body = results.get(0);
 		}
@@ -260,8 +1094,79 @@ public class MessageController implements RouteRegistrar {
 				.copyHeadersIfAbsent(outputHeaders).build(), headers);
 	}
 
-	private ResponseEntity<Object> convert(Message<?> message, HttpHeaders request) {
-		return convert(HttpStatus.OK, message, request);
+	private boolean isNdjson(MediaType type) {
+		return type != null && NDJSON.includes(type);
+	}
+
+	private ResponseEntity<Object> convert(Message<List<RouteBuffer.Entry>> polled,
+			HttpHeaders request) {
+		List<RouteBuffer.Entry> entries = polled.getPayload();
+		HttpHeaders headers = HeaderUtils.fromMessage(polled.getHeaders(), request);
+		if (!acceptsJson(request)) {
+			List<Object> payloads = new ArrayList<>(entries.size());
+			for (RouteBuffer.Entry entry : entries) {
+				payloads.add(entry.getMessage().getPayload());
+			}
+			return ResponseEntity.ok().headers(headers).body(payloads);
+		}
+		// Assemble a JSON array from the cached JSON for each payload, instead of
+		// encoding them all again for every request
+		List<byte[]> parts = new ArrayList<>(entries.size());
+		int length = 2 + Math.max(entries.size() - 1, 0);
+		for (RouteBuffer.Entry entry : entries) {
+			byte[] part = entry.getJson(this::json);
+			parts.add(part);
+			length += part.length;
+		}
+		byte[] body = new byte[length];
+		int offset = 0;
+		body[offset++] = '[';
+		for (byte[] part : parts) {
+			if (offset > 1) {
+				body[offset++] = ',';
+			}
+			System.arraycopy(part, 0, body, offset, part.length);
+			offset += part.length;
+		}
+		body[offset] = ']';
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		return new ResponseEntity<>(body, headers, HttpStatus.OK);
+	}
+
+	private boolean acceptsJson(HttpHeaders request) {
+		List<MediaType> accept = request.getAccept();
+		if (accept.isEmpty()) {
+			return true;
+		}
+		for (MediaType type : accept) {
+			if (type.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private byte[] json(Object payload) {
+		try {
+			return objectMapper.writeValueAsBytes(payload);
+		}
+		catch (JsonProcessingException e) {
+			throw new IllegalStateException("Cannot encode payload as JSON", e);
+		}
+	}
+
+	/**
+	 * The payload as the data of a server sent event: bytes and strings as they are, and
+	 * anything else as JSON.
+	 */
+	private byte[] text(Object payload) {
+		if (payload instanceof byte[]) {
+			return (byte[]) payload;
+		}
+		if (payload instanceof String) {
+			return ((String) payload).getBytes(StandardCharsets.UTF_8);
+		}
+		return json(payload);
 	}
 
 	private ResponseEntity<Object> convert(HttpStatus status, Message<?> message,
@@ -271,39 +1176,287 @@ public class MessageController implements RouteRegistrar {
 				.body(message.getPayload());
 	}
 
-	private SseEmitter emit(Route route, Message<Collection<Object>> message)
-			throws IOException {
-		SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-		String path = route.getPath();
-		if (!emitters.containsKey(path)) {
-			emitters.putIfAbsent(path, new HashSet<>());
+	/**
+	 * The event ids are the sequence numbers in the route buffer, so a client that
+	 * reconnects only needs the messages after the last one it received.
+	 */
+	private long lastEventId(HttpHeaders headers) {
+		String value = headers.getFirst(LAST_EVENT_ID);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				// Not one of ours, so start again from the beginning
+			}
 		}
-		emitters.get(path).add(emitter);
-		emitter.onCompletion(() -> emitters.get(path).remove(emitter));
-		emitter.onTimeout(() -> emitters.get(path).remove(emitter));
-		for (Object body : message.getPayload()) {
-			emitter.send(body);
+		return -1;
+	}
+
+	/**
+	 * The id of an event in a multiplexed stream has the sequence numbers of all the
+	 * routes in it, like <code>foo:12,bar:7</code>.
+	 */
+	private Map<String, Long> lastEventIds(HttpHeaders headers) {
+		Map<String, Long> result = new HashMap<>();
+		String value = headers.getFirst(LAST_EVENT_ID);
+		if (value != null) {
+			for (String cursor : value.split(",")) {
+				int index = cursor.lastIndexOf(":");
+				if (index > 0) {
+					try {
+						result.put(cursor.substring(0, index).trim(),
+								Long.parseLong(cursor.substring(index + 1).trim()));
+					}
+					catch (NumberFormatException e) {
+						// Not one of ours, so start again from the beginning
+					}
+				}
+			}
 		}
-		return emitter;
+		return result;
 	}
 
-	private Message<Collection<Object>> poll(String channel, String route,
-			boolean requeue) {
-		List<Object> list = new ArrayList<>();
-		List<Message<?>> messages = new ArrayList<>();
-		Bridge<Message<?>> queue = queues.get(new Route(route, channel).getPath());
-		if (queue != null) {
-			queue.receive().subscribe(message -> {
-				messages.add(message);
-				list.add(message.getPayload());
-			});
-			if (!requeue) {
-				queue.reset();
+	/**
+	 * The header values that messages must have, from parameters like
+	 * <code>header=tenant:acme</code>.
+	 */
+	private Map<String, String> headers(List<String> header) {
+		if (header == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> result = new LinkedHashMap<>();
+		for (String value : header) {
+			int index = value.indexOf(":");
+			if (index <= 0) {
+				throw new InvalidRequestException(
+						"Header parameter must be name:value but was " + value);
 			}
+			result.put(value.substring(0, index).trim(), value.substring(index + 1));
+		}
+		return result;
+	}
+
+	/**
+	 * The filter from a <code>filter</code> parameter, or null if there is none.
+	 */
+	private Predicate<Message<?>> filter(String filter) {
+		try {
+			return filters.get(filter);
+		}
+		catch (ParseException e) {
+			throw new InvalidRequestException(
+					"Filter is not a valid expression: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Check if the route key from a request is a pattern, and if it is that it is a
+	 * valid one.
+	 */
+	private static boolean isPattern(Route route) {
+		if (!RouteTrie.isPattern(route.getKey())) {
+			return false;
+		}
+		try {
+			RouteTrie.validate(route.getKey());
 		}
-		MessageBuilder<Collection<Object>> builder = MessageBuilder.withPayload(list);
-		if (!messages.isEmpty()) {
-			builder.copyHeadersIfAbsent(messages.get(0).getHeaders());
+		catch (IllegalArgumentException e) {
+			throw new InvalidRequestException(e.getMessage(), e);
+		}
+		return true;
+	}
+
+	/**
+	 * The keys of all the routes with buffers that match the pattern.
+	 */
+	private List<String> matching(String channel, String pattern) {
+		List<String> keys = new ArrayList<>();
+		for (String path : queues.keySet()) {
+			String key = path.contains("/") ? path.substring(0, path.lastIndexOf("/"))
+					: null;
+			if (new Route(key, channel).getPath().equals(path)
+					&& RouteTrie.matches(pattern, key)) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Register a new server sent event client for the route. It does not write anything
+	 * until it is started.
+	 */
+	private SseClient connect(Route route) {
+		return connect(route.getChannel(), Collections.singleton(route.getPath()),
+				Collections.emptyList());
+	}
+
+	private SseClient connect(String channel, Collection<String> paths,
+			Collection<Route> patterns) {
+		SseClient client = new SseClient(new ResponseBodyEmitter(Long.MAX_VALUE),
+				getWriters(),
+				getBindingProperty(channel, ServletBindingProperties::getSseQueueCapacity,
+						sseQueueCapacity),
+				getBindingProperty(channel, ServletBindingProperties::getSseOverflow,
+						sseOverflow),
+				this::text);
+		client.setFlushWindow(scheduler,
+				getBindingProperty(channel, ServletBindingProperties::getSseFlushMillis,
+						sseFlushMillis),
+				getBindingProperty(channel, ServletBindingProperties::getSseFlushCount,
+						sseFlushCount));
+		client.setWriteTimeout(scheduler, sseWriteTimeoutMillis);
+		for (String path : paths) {
+			register(clients, path, client);
+		}
+		for (Route pattern : patterns) {
+			subscriptions.computeIfAbsent(pattern.getChannel(), id -> new RouteTrie<>())
+					.add(pattern.getKey(), client);
+		}
+		client.onClose(() -> {
+			paths.forEach(path -> unregister(clients, path, client));
+			for (Route pattern : patterns) {
+				subscriptions.get(pattern.getChannel()).remove(pattern.getKey(), client);
+			}
+		});
+		getWheel().add(client);
+		return client;
+	}
+
+	/**
+	 * Add a subscriber for a route. The set is created and removed atomically, so there
+	 * are only sets for the routes that have subscribers.
+	 */
+	private <T> void register(ConcurrentMap<String, Set<T>> map, String path,
+			T value) {
+		map.compute(path, (id, set) -> {
+			Set<T> result = set != null ? set : ConcurrentHashMap.newKeySet();
+			result.add(value);
+			return result;
+		});
+	}
+
+	private <T> void unregister(ConcurrentMap<String, Set<T>> map, String path,
+			T value) {
+		map.computeIfPresent(path, (id, set) -> {
+			set.remove(value);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	/**
+	 * Remove the buffers of routes that are idle and have no subscribers, and if there
+	 * are still too many, the ones that were used least recently.
+	 */
+	void sweep() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long idle = routeIdleSeconds > 0
+					? System.currentTimeMillis() - routeIdleSeconds * 1000
+					: Long.MIN_VALUE;
+			List<Map.Entry<String, Long>> candidates = new ArrayList<>();
+			for (Map.Entry<String, RouteBuffer> entry : queues.entrySet()) {
+				long used = entry.getValue().getLastUsed();
+				if (used <= idle) {
+					retire(entry.getKey(), used);
+				}
+				else if (maxRoutes > 0) {
+					candidates.add(new AbstractMap.SimpleEntry<>(entry.getKey(), used));
+				}
+			}
+			if (maxRoutes <= 0 || queues.size() <= maxRoutes) {
+				return;
+			}
+			candidates.sort(Map.Entry.comparingByValue());
+			for (Map.Entry<String, Long> candidate : candidates) {
+				if (queues.size() <= maxRoutes) {
+					break;
+				}
+				retire(candidate.getKey(), candidate.getValue());
+			}
+		}
+		finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * Remove the buffer for a route if it has not been used since the time provided,
+	 * and it has no subscribers.
+	 */
+	private void retire(String path, long since) {
+		RouteBuffer[] retired = new RouteBuffer[1];
+		queues.computeIfPresent(path, (id, queue) -> {
+			if (!isSubscribed(path) && queue.retire(since)) {
+				retired[0] = queue;
+				return null;
+			}
+			return queue;
+		});
+		if (retired[0] != null) {
+			retired[0].close();
+		}
+	}
+
+	private boolean isSubscribed(String path) {
+		if (clients.containsKey(path) || waiters.containsKey(path)) {
+			return true;
+		}
+		int index = path.lastIndexOf("/");
+		RouteTrie<SseClient> trie = subscriptions
+				.get(index < 0 ? path : path.substring(index + 1));
+		if (trie == null) {
+			return false;
+		}
+		boolean[] result = new boolean[1];
+		trie.match(index < 0 ? null : path.substring(0, index),
+				client -> result[0] = true);
+		return result[0];
+	}
+
+	/**
+	 * The buffer for a route, if there is one. The buffer of a durable route is opened
+	 * again if it was removed when it was idle.
+	 */
+	private RouteBuffer queue(String path, String channel) {
+		RouteBuffer queue = queues.get(path);
+		if (queue == null && isDurable(channel)
+				&& new File(durableDirectory, encode(path)).exists()) {
+			queue = queues.computeIfAbsent(path, id -> buffer(id, channel));
+		}
+		return queue;
+	}
+
+	private Message<List<RouteBuffer.Entry>> poll(String channel, String route,
+			boolean requeue, long since, int limit, int last) {
+		return poll(channel, route, requeue, since, limit, last,
+				Collections.emptyMap(), null);
+	}
+
+	private Message<List<RouteBuffer.Entry>> poll(String channel, String route,
+			boolean requeue, long since, int limit, int last,
+			Map<String, String> headers, Predicate<Message<?>> filter) {
+		List<RouteBuffer.Entry> entries = new ArrayList<>();
+		RouteBuffer queue = queue(new Route(route, channel).getPath(), channel);
+		Long sequence = null;
+		if (queue != null) {
+			RouteBuffer.Slice slice = requeue
+					? queue.receive(since, limit, last, headers, filter)
+					: queue.drain(since, limit, last, headers, filter);
+			entries = slice.getEntries();
+			sequence = slice.getSequence();
+		}
+		MessageBuilder<List<RouteBuffer.Entry>> builder = MessageBuilder
+				.withPayload(entries);
+		if (!entries.isEmpty()) {
+			builder.copyHeadersIfAbsent(entries.get(0).getMessage().getHeaders());
+		}
+		if (sequence != null) {
+			// The cursor for the next poll (use it as the value of "since")
+			builder.setHeader(SEQUENCE, sequence);
 		}
 		return builder.build();
 	}
@@ -315,30 +1468,184 @@ public class MessageController implements RouteRegistrar {
 
 	private void append(String name, Message<?> message) {
 		String key = (String) message.getHeaders().get(ROUTE_KEY);
-		if (message.getHeaders().getReplyChannel() instanceof MessageChannel) {
-			MessageChannel replyChannel = (MessageChannel) message.getHeaders()
-					.getReplyChannel();
-			replyChannel.send(message);
+		Object correlation = message.getHeaders().get(CORRELATION_ID);
+		if (correlation instanceof Long) {
+			// A reply to a POST (if it already timed out the reply is discarded)
+			Exchange exchange = exchanges.get(correlation);
+			if (exchange != null) {
+				exchange.reply((Long) correlation, message);
+			}
 			return;
 		}
 		Route route = new Route(key, name);
 		String path = route.getPath();
-		if (!queues.containsKey(path)) {
-			Bridge<Message<?>> flux = new Bridge<>();
-			queues.putIfAbsent(path, flux);
-		}
-		queues.get(path).send(message);
-		if (emitters.containsKey(path)) {
-			Set<SseEmitter> list = new HashSet<>(emitters.get(path));
-			for (SseEmitter emitter : list) {
-				try {
-					emitter.send(message.getPayload());
-				}
-				catch (IOException e) {
-					emitters.get(path).remove(emitter);
-				}
+		RouteBuffer.Entry entry = add(path, name, message);
+		Set<Waiter> ready = waiters.get(path);
+		if (ready != null) {
+			// Only signalled here: the waiters poll and encode on the executor, so the
+			// sender is not held up by the number of them
+			for (Waiter waiter : ready) {
+				waiter.signal();
+			}
+		}
+		Set<SseClient> set = clients.get(path);
+		if (set != null) {
+			// Only queued here: each client is written to by its own task, so a slow one
+			// does not hold up the sender (or the other clients)
+			for (SseClient client : set) {
+				client.offer(entry);
 			}
 		}
+		RouteTrie<SseClient> trie = subscriptions.get(name);
+		if (trie != null) {
+			trie.match(key, client -> client.offer(entry));
+		}
+	}
+
+	private RouteBuffer.Entry add(String path, String name, Message<?> message) {
+		RouteBuffer queue;
+		RouteBuffer.Entry entry;
+		do {
+			queue = queues.computeIfAbsent(path, id -> buffer(id, name));
+			entry = queue.add(message);
+		}
+		// Retired (idle) buffers are removed, so the next one is new
+		while (entry == null && queue.isRetired());
+		if (maxRoutes > 0 && queues.size() > maxRoutes && !sweeping.get()) {
+			scheduler.execute(this::sweep);
+		}
+		if (entry == null) {
+			throw new MessageDeliveryException(message,
+					"Buffer full (capacity=" + queue.getCapacity() + ") for route: "
+							+ path);
+		}
+		return entry;
+	}
+
+	private RouteBuffer buffer(String path, String name) {
+		String compaction = getBindingProperty(name,
+				ServletBindingProperties::getCompactionKey, null);
+		int threshold = getBindingProperty(name,
+				ServletBindingProperties::getSpillThreshold, spillThreshold);
+		// A compacted buffer is only in memory (it is already bounded by the keys)
+		boolean spill = compaction == null && threshold > 0
+				&& threshold < bufferCapacity;
+		RouteBuffer buffer = new RouteBuffer(path, spill ? threshold : bufferCapacity,
+				bufferOverflow,
+				getBindingProperty(name,
+						ServletBindingProperties::getBufferTimeoutSeconds,
+						timeoutSeconds) * 1000,
+				getBindingProperty(name, ServletBindingProperties::getIndexedHeaders,
+						Collections.emptyList()));
+		buffer.setExpiry(getExpiry());
+		MemoryBudget budget = getBudget();
+		if (budget != null) {
+			buffer.setBudget(budget);
+		}
+		if (compaction != null) {
+			buffer.setCompaction(message -> key(message, compaction));
+			return buffer;
+		}
+		try {
+			if (isDurable(name)) {
+				buffer.attach(new SegmentLog(path,
+						new File(durableDirectory, encode(path)), durableSegmentBytes,
+						durableRetentionBytes, objectMapper, codec));
+			}
+			else if (spill) {
+				buffer.attach(SegmentLog.temporary(path, 0, durableSegmentBytes,
+						objectMapper, codec), bufferCapacity);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot open log for route: " + path, e);
+		}
+		return buffer;
+	}
+
+	/**
+	 * The compaction key of a message: the value of a header, or if there is no such
+	 * header, a field of the payload (a map, a JSON object, or a bean). Null if neither
+	 * of them has it. As a string, so that the same value matches wherever it came from.
+	 * The id and timestamp headers are different for every message, so they are never
+	 * used (a payload field with the same name can be).
+	 */
+	private Object key(Message<?> message, String name) {
+		Object value = MessageHeaders.ID.equals(name)
+				|| MessageHeaders.TIMESTAMP.equals(name) ? null
+						: message.getHeaders().get(name);
+		if (value != null) {
+			return value.toString();
+		}
+		Object payload = message.getPayload();
+		if (payload instanceof Map) {
+			value = ((Map<?, ?>) payload).get(name);
+		}
+		else if (payload instanceof byte[] || payload instanceof String) {
+			JsonNode node;
+			try {
+				node = payload instanceof byte[]
+						? objectMapper.readTree((byte[]) payload)
+						: objectMapper.readTree((String) payload);
+			}
+			catch (IOException e) {
+				// Not JSON, so there is no key
+				return null;
+			}
+			JsonNode field = node == null ? null : node.get(name);
+			if (field == null || field.isNull()) {
+				return null;
+			}
+			return field.isValueNode() ? field.asText() : field.toString();
+		}
+		else {
+			BeanWrapper wrapper = new BeanWrapperImpl(payload);
+			if (wrapper.isReadableProperty(name)) {
+				value = wrapper.getPropertyValue(name);
+			}
+		}
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * The timer that removes messages from the route buffers when they expire.
+	 */
+	private synchronized TimingWheel<Runnable> getExpiry() {
+		if (expiry == null) {
+			expiry = new TimingWheel<>(scheduler, 10, 4, Runnable::run);
+		}
+		return expiry;
+	}
+
+	private synchronized MemoryBudget getBudget() {
+		if (budget == null && bufferMemoryBytes > 0) {
+			budget = new MemoryBudget(bufferMemoryBytes, this::json);
+		}
+		return budget;
+	}
+
+	private boolean isDurable(String channel) {
+		return getBindingProperty(channel, ServletBindingProperties::getDurable,
+				durable);
+	}
+
+	private String encode(String path) {
+		try {
+			// One directory per route, so the path separators have to be encoded
+			return URLEncoder.encode(path, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String decode(String name) {
+		try {
+			return URLDecoder.decode(name, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	public void bind(String name, String group, MessageChannel inputTarget) {
@@ -413,27 +1720,340 @@ public class MessageController implements RouteRegistrar {
 		}
 	}
 
-	private class Bridge<T> {
+	/**
+	 * A GET request that is parked until there is something to return.
+	 */
+	private class Waiter {
+
+		private final DeferredResult<ResponseEntity<Object>> result;
+		private final Supplier<Message<List<RouteBuffer.Entry>>> poll;
+		private final HttpHeaders headers;
+		private final AtomicBoolean signalled = new AtomicBoolean();
+
+		public Waiter(DeferredResult<ResponseEntity<Object>> result,
+				Supplier<Message<List<RouteBuffer.Entry>>> poll, HttpHeaders headers) {
+			this.result = result;
+			this.poll = poll;
+			this.headers = headers;
+		}
+
+		/**
+		 * Something was added to the buffer, so poll it on the executor. Signals that
+		 * arrive before the poll starts share the same task.
+		 */
+		public void signal() {
+			if (result.isSetOrExpired() || !signalled.compareAndSet(false, true)) {
+				return;
+			}
+			Runnable task = () -> {
+				// Reset first, so that anything added after this is polled again
+				signalled.set(false);
+				complete(false);
+			};
+			try {
+				getExecutor().execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Poll the buffer and send the result if there is anything in it (or if the
+		 * request has timed out).
+		 */
+		public void complete(boolean timeout) {
+			synchronized (result) {
+				if (result.isSetOrExpired()) {
+					return;
+				}
+				Message<List<RouteBuffer.Entry>> polled = poll.get();
+				if (timeout || !polled.getPayload().isEmpty()) {
+					result.setResult(convert(polled, headers));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The replies expected from a POST to an input channel with a linked output. The
+	 * response is sent when all the replies have arrived, or when the receive timeout
+	 * expires, whichever is sooner. Each payload is sent with a unique correlation id
+	 * header, and all the ids are registered, so the output subscription can hand
+	 * replies straight back to the exchange. If the response is streamed, each reply is
+	 * written (and released) as soon as it and all the ones before it have arrived.
+	 * Payloads can be added until the exchange starts, so the total number does not
+	 * have to be known in advance.
+	 */
+	private class Exchange {
+
+		private final CompletableFuture<ResponseEntity<Object>> result = new CompletableFuture<>();
+		private final Route route;
+		private final List<Object> inputs;
+		private final boolean single;
+		private final HttpHeaders headers;
+		private final ResponseBodyEmitter emitter;
+		private final List<Message<?>> replies;
+		/**
+		 * The correlation ids allocated so far, in blocks of consecutive ids. Each block
+		 * is the first id, the index of the payload that it belongs to, and the number of
+		 * ids.
+		 */
+		private final List<long[]> blocks = new ArrayList<>();
+		private final int expected;
+		private long nextId;
+		private long endId;
+		private int remaining;
+		private int streamed;
+		private boolean replied;
+		private ScheduledFuture<?> timeout;
+
+		public Exchange(Route route, boolean single, int expected, HttpHeaders headers,
+				ResponseBodyEmitter emitter) {
+			this.route = route;
+			this.single = single;
+			this.expected = expected;
+			this.headers = headers;
+			this.emitter = emitter;
+			this.inputs = new ArrayList<>(expected);
+			this.replies = new ArrayList<>(expected);
+			if (emitter != null) {
+				emitter.onCompletion(this::cancel);
+				emitter.onTimeout(this::cancel);
+			}
+		}
+
+		/**
+		 * Record a payload that was sent without expecting a reply.
+		 */
+		public synchronized void input(Object payload) {
+			inputs.add(payload);
+		}
+
+		/**
+		 * Record a payload that expects a reply, and register a new correlation id for
+		 * it, so that the reply can be routed back here.
+		 *
+		 * @return the correlation id
+		 */
+		public synchronized long add(Object payload) {
+			inputs.add(payload);
+			replies.add(null);
+			remaining++;
+			if (nextId == endId) {
+				// If the size is unknown, allocate blocks of ids that grow geometrically
+				int size = blocks.isEmpty() && expected > 0 ? expected
+						: Math.max(16, replies.size());
+				nextId = correlations.getAndAdd(size);
+				endId = nextId + size;
+				blocks.add(new long[] { nextId, replies.size() - 1, size });
+			}
+			long id = nextId++;
+			exchanges.put(id, this);
+			return id;
+		}
+
+		public CompletableFuture<ResponseEntity<Object>> getResult() {
+			return result;
+		}
+
+		public boolean isDone() {
+			return result.isDone();
+		}
+
+		public CompletableFuture<ResponseEntity<Object>> start() {
+			synchronized (this) {
+				if (result.isDone()) {
+					return result;
+				}
+				if (remaining > 0) {
+					timeout = scheduler.schedule(this::complete, receiveTimeoutMillis,
+							TimeUnit.MILLISECONDS);
+				}
+				else {
+					complete();
+				}
+			}
+			return result;
+		}
+
+		public synchronized void reply(long correlation, Message<?> message) {
+			int index = index(correlation);
+			if (result.isDone() || index < streamed || replies.get(index) != null) {
+				// Only the first reply counts
+				return;
+			}
+			replies.set(index, message);
+			replied = true;
+			remaining--;
+			if (emitter != null) {
+				stream(false);
+			}
+			if (remaining == 0 && timeout != null) {
+				complete();
+			}
+		}
 
-		private Processor<T, T> emitter;
-		private Flux<T> sink;
+		/**
+		 * The inputs were sent to a channel with no linked output, so there is nothing
+		 * to wait for.
+		 */
+		public synchronized void accept(Map<String, Object> messageHeaders) {
+			if (emitter != null) {
+				inputs.forEach(this::write);
+				finish();
+				return;
+			}
+			result.complete(response(HttpStatus.ACCEPTED, route, single,
+					new ArrayList<>(inputs), messageHeaders, headers));
+		}
 
-		public Bridge() {
-			reset();
+		public synchronized void cancel() {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			result.cancel(false);
+			unregister();
 		}
 
-		public void reset() {
-			this.emitter = UnicastProcessor.<T>create().serialize();
-			this.sink = Flux.from(emitter).replay().autoConnect()
-					.take(Duration.ofSeconds(timeoutSeconds));
+		public synchronized void fail(Throwable e) {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			if (result.completeExceptionally(e) && emitter != null) {
+				emitter.completeWithError(e);
+			}
+			unregister();
 		}
 
-		public void send(T item) {
-			emitter.onNext(item);
+		private synchronized void complete() {
+			if (result.isDone()) {
+				return;
+			}
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			unregister();
+			if (emitter != null) {
+				if (replied) {
+					stream(true);
+				}
+				else {
+					// Nothing came back, so mirror the inputs, like a normal response
+					inputs.forEach(this::write);
+				}
+				finish();
+				return;
+			}
+			Map<String, Object> outputHeaders = null;
+			List<Object> results = new ArrayList<>();
+			for (Message<?> reply : replies) {
+				if (reply != null) {
+					if (outputHeaders == null) {
+						outputHeaders = reply.getHeaders();
+					}
+					results.add(reply.getPayload());
+				}
+			}
+			HttpStatus status = HttpStatus.OK;
+			if (results.isEmpty()) {
+				// If nothing came back, just assume it was intentional, and say that
+				// we accepted the inputs.
+				status = HttpStatus.ACCEPTED;
+				results.addAll(inputs);
+			}
+			result.complete(response(status, route, single, results, outputHeaders,
+					headers));
 		}
 
-		public Flux<T> receive() {
-			return sink;
+		/**
+		 * Write the replies that are ready, in order, and release them. If
+		 * <code>all</code> is true then missing replies are skipped, otherwise it stops at
+		 * the first one that has not arrived yet.
+		 */
+		private void stream(boolean all) {
+			while (streamed < replies.size() && !result.isDone()
+					&& (all || replies.get(streamed) != null)) {
+				Message<?> reply = replies.set(streamed++, null);
+				if (reply != null) {
+					write(reply.getPayload());
+				}
+			}
+		}
+
+		private void write(Object payload) {
+			if (result.isDone()) {
+				return;
+			}
+			try {
+				if (emitter instanceof SseEmitter) {
+					((SseEmitter) emitter).send(payload);
+				}
+				else if (payload instanceof String) {
+					emitter.send(JsonUtils.line((String) payload) + "\n",
+							MediaType.TEXT_PLAIN);
+				}
+				else {
+					emitter.send(payload, MediaType.APPLICATION_JSON);
+					emitter.send("\n", MediaType.TEXT_PLAIN);
+				}
+			}
+			catch (IOException e) {
+				// The client went away, so stop sending
+				cancel();
+			}
+		}
+
+		private void finish() {
+			// The response has already been streamed, so there is no body to complete
+			// with
+			if (result.complete(null)) {
+				emitter.complete();
+			}
+		}
+
+		private int index(long correlation) {
+			for (int i = blocks.size() - 1; i >= 0; i--) {
+				long[] block = blocks.get(i);
+				if (correlation >= block[0] && correlation < block[0] + block[2]) {
+					return (int) (block[1] + correlation - block[0]);
+				}
+			}
+			return -1;
+		}
+
+		private void unregister() {
+			for (long[] block : blocks) {
+				for (long id = block[0]; id < block[0] + block[2]; id++) {
+					exchanges.remove(id, this);
+				}
+			}
+		}
+
+	}
+
+	@Override
+	public void destroy() {
+		synchronized (this) {
+			if (wheel != null) {
+				wheel.stop();
+			}
+			if (expiry != null) {
+				expiry.stop();
+			}
+		}
+		scheduler.shutdownNow();
+		if (dispatcher != null) {
+			dispatcher.shutdownNow();
+		}
+		if (readers != null) {
+			readers.shutdownNow();
+		}
+		if (writers != null) {
+			writers.shutdownNow();
+		}
+		for (RouteBuffer queue : queues.values()) {
+			queue.close();
 		}
 	}
 
@@ -446,7 +2066,10 @@ public class MessageController implements RouteRegistrar {
 	public void unregisterRoutes(Set<String> routes) {
 		this.routes.removeAll(routes);
 		for (String path : routes) {
-			queues.remove(output(prefix + path).getPath());
+			RouteBuffer queue = queues.remove(output(prefix + path).getPath());
+			if (queue != null) {
+				queue.close();
+			}
 		}
 	}
 
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import org.springframework.context.expression.MapAccessor;
+import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.expression.AccessException;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.expression.MethodExecutor;
+import org.springframework.expression.PropertyAccessor;
+import org.springframework.expression.TypedValue;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.SpelParseException;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.ast.Assign;
+import org.springframework.expression.spel.ast.OpDec;
+import org.springframework.expression.spel.ast.OpInc;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.ReflectiveMethodResolver;
+import org.springframework.expression.spel.support.ReflectivePropertyAccessor;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.messaging.Message;
+import org.springframework.util.StringUtils;
+
+/**
+ * Internal cache of the filters that clients can use to select messages, so that the
+ * ones they do not want are never encoded or sent. A filter is a SpEL expression
+ * evaluated against the message, e.g. <code>headers.type=='order'</code> or
+ * <code>payload.contains('foo')</code>. Each expression is parsed once (and compiled
+ * once it has been used a few times), no matter how many requests use it. Clients send
+ * the expressions, so they are checked against an allow-list: they can only read the
+ * payload and headers of the message, and the properties and methods of simple values
+ * (text, numbers, booleans, and the read-only methods of maps and collections). Anything
+ * else (types, constructors, assignments, other objects) does not match.
+ *
+ * @author Dave Syer
+ *
+ */
+class MessageFilters {
+
+	private static final int CAPACITY = 1000;
+
+	private static final Set<String> MESSAGE = new HashSet<>(
+			Arrays.asList("payload", "headers", "getPayload", "getHeaders"));
+
+	/**
+	 * The methods (and properties) of maps and collections that do not change them.
+	 */
+	private static final Set<String> CONTAINER = new HashSet<>(Arrays.asList("size",
+			"isEmpty", "empty", "contains", "containsAll", "containsKey", "containsValue",
+			"get", "getOrDefault", "indexOf", "lastIndexOf", "equals", "hashCode",
+			"toString"));
+
+	/**
+	 * The methods of {@link Object} that are not safe even on a simple value.
+	 */
+	private static final Set<String> OBJECT = new HashSet<>(
+			Arrays.asList("class", "getClass", "wait", "notify", "notifyAll"));
+
+	private final SpelExpressionParser parser = new SpelExpressionParser(
+			new SpelParserConfiguration(SpelCompilerMode.MIXED,
+					MessageFilters.class.getClassLoader()));
+
+	private final StandardEvaluationContext context = new StandardEvaluationContext();
+
+	private final ConcurrentMap<String, Predicate<Message<?>>> cache = new ConcurrentHashMap<>();
+
+	public MessageFilters() {
+		context.setTypeLocator(type -> {
+			throw new SpelEvaluationException(SpelMessage.TYPE_NOT_FOUND, type);
+		});
+		context.setConstructorResolvers(Collections.emptyList());
+		context.setMethodResolvers(Collections.singletonList(new SafeMethodResolver()));
+		context.setPropertyAccessors(
+				Arrays.asList(new ReadOnlyMapAccessor(), new SafePropertyAccessor()));
+	}
+
+	/**
+	 * The filter for an expression, or null if there is no expression.
+	 *
+	 * @throws org.springframework.expression.ParseException if the expression is not
+	 * valid
+	 */
+	public Predicate<Message<?>> get(String expression) {
+		if (!StringUtils.hasText(expression)) {
+			return null;
+		}
+		Predicate<Message<?>> filter = cache.get(expression);
+		if (filter == null) {
+			Expression parsed = parser.parseExpression(expression);
+			readOnly(((SpelExpression) parsed).getAST());
+			filter = filter(parsed);
+			if (cache.size() >= CAPACITY) {
+				// Crude, but the same few expressions are normally used over and over
+				cache.clear();
+			}
+			cache.put(expression, filter);
+		}
+		return filter;
+	}
+
+	private Predicate<Message<?>> filter(Expression expression) {
+		return message -> {
+			try {
+				return Boolean.TRUE
+						.equals(expression.getValue(context, message, Boolean.class));
+			}
+			catch (EvaluationException e) {
+				// E.g. the message does not have the property, so it does not match
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Indexers can change a map or a list without a property accessor, so assignments
+	 * are rejected before the expression is ever evaluated.
+	 */
+	private static void readOnly(SpelNode node) {
+		if (node instanceof Assign || node instanceof OpInc || node instanceof OpDec) {
+			throw new SpelParseException(node.getStartPosition(),
+					SpelMessage.NOT_ASSIGNABLE, node.toStringAST());
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			readOnly(node.getChild(i));
+		}
+	}
+
+	/**
+	 * Check if a method or property of the target is on the allow-list.
+	 */
+	private static boolean allowed(Object target, String name) {
+		if (target instanceof Message) {
+			return MESSAGE.contains(name);
+		}
+		if (target instanceof Map || target instanceof Collection) {
+			return CONTAINER.contains(name);
+		}
+		if (target instanceof String || target instanceof Boolean
+				|| target instanceof Character || immutable(target)) {
+			return !OBJECT.contains(name);
+		}
+		return false;
+	}
+
+	/**
+	 * Numbers that cannot be changed (unlike e.g. an <code>AtomicLong</code>).
+	 */
+	private static boolean immutable(Object target) {
+		if (!(target instanceof Number)) {
+			return false;
+		}
+		Class<?> type = target.getClass();
+		return type.getName().startsWith("java.lang.") || type == BigDecimal.class
+				|| type == BigInteger.class;
+	}
+
+	private static class SafeMethodResolver extends ReflectiveMethodResolver {
+
+		@Override
+		public MethodExecutor resolve(EvaluationContext context, Object target,
+				String name, List<TypeDescriptor> argumentTypes) throws AccessException {
+			if (!allowed(target, name)) {
+				return null;
+			}
+			return super.resolve(context, target, name, argumentTypes);
+		}
+
+	}
+
+	private static class ReadOnlyMapAccessor extends MapAccessor {
+
+		@Override
+		public boolean canWrite(EvaluationContext context, Object target, String name)
+				throws AccessException {
+			return false;
+		}
+
+	}
+
+	/**
+	 * Not a {@link ReflectivePropertyAccessor} itself, so SpEL cannot swap it for an
+	 * optimized accessor that skips the checks.
+	 */
+	private static class SafePropertyAccessor implements PropertyAccessor {
+
+		private final ReflectivePropertyAccessor delegate = new ReflectivePropertyAccessor();
+
+		@Override
+		public Class<?>[] getSpecificTargetClasses() {
+			return null;
+		}
+
+		@Override
+		public boolean canRead(EvaluationContext context, Object target, String name)
+				throws AccessException {
+			return allowed(target, name) && delegate.canRead(context, target, name);
+		}
+
+		@Override
+		public TypedValue read(EvaluationContext context, Object target, String name)
+				throws AccessException {
+			if (!canRead(context, target, name)) {
+				throw new AccessException("Cannot read property: " + name);
+			}
+			return delegate.read(context, target, name);
+		}
+
+		@Override
+		public boolean canWrite(EvaluationContext context, Object target, String name)
+				throws AccessException {
+			return false;
+		}
+
+		@Override
+		public void write(EvaluationContext context, Object target, String name,
+				Object newValue) throws AccessException {
+			throw new AccessException("Cannot write property: " + name);
+		}
+
+	}
+
+}
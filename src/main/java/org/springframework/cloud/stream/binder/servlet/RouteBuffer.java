@@ -0,0 +1,1213 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Internal bounded buffer for the messages sent to a single route. It is a ring of slots
+ * indexed by a sequence number: producers claim a sequence with an atomic increment and
+ * publish into the corresponding slot, so there are no locks, and readers take a
+ * snapshot of the published slots without subscribing to anything. Optionally some
+ * headers can be indexed: the buffer keeps the sequence numbers of the messages with
+ * each value of those headers, so a read that asks for a header value only has to look
+ * at the messages that have it, instead of all of them. A buffer can also be backed by a
+ * {@link SegmentLog}, in which case every message is appended to the log as well, and
+ * reads of messages that are no longer in the ring come from the log. With a temporary
+ * log, the ring only keeps the newest messages in the heap, and the older ones spill
+ * over to disk (they are only written to it when they leave the ring). Buffers can share
+ * a {@link MemoryBudget}, which evicts the oldest messages (from the ring, but not from
+ * the log) when they use too much memory. A compacted buffer does not use the ring at
+ * all: it only keeps the latest message for each key (e.g. the latest price of each
+ * product), so a read is a snapshot of the current state instead of the whole history,
+ * and the capacity is the number of keys.
+ *
+ * @author Dave Syer
+ *
+ */
+class RouteBuffer {
+
+	private static final int RETIRING = -1;
+
+	private static final int RETIRED = -2;
+
+	/**
+	 * Stands in for a message that has expired, until the slot is reused.
+	 */
+	private static final Message<?> EXPIRED = MessageBuilder.withPayload(new byte[0])
+			.build();
+
+	private final AtomicReferenceArray<Entry> slots;
+
+	/**
+	 * The next sequence number to be claimed by a producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The oldest sequence number that has not been purged.
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	private final int capacity;
+
+	private final BufferOverflow overflow;
+
+	private final long timeoutMillis;
+
+	private final String route;
+
+	/**
+	 * The sequence numbers of the buffered messages, by header name and value.
+	 */
+	private final Map<String, ConcurrentMap<String, NavigableSet<Long>>> index;
+
+	private volatile SegmentLog log;
+
+	/**
+	 * The first sequence number that was added to the ring (as opposed to being
+	 * recovered from the log).
+	 */
+	private long base;
+
+	/**
+	 * The maximum number of messages kept in the log (zero or negative for no limit).
+	 */
+	private long limit;
+
+	/**
+	 * The oldest sequence number that has not been evicted from the ring to save memory
+	 * (only if there is a log to read it from instead).
+	 */
+	private final AtomicLong floor = new AtomicLong();
+
+	private volatile MemoryBudget budget;
+
+	private volatile TimingWheel<Runnable> expiry;
+
+	/**
+	 * The compaction key of a message (null unless the buffer is compacted).
+	 */
+	private volatile Function<Message<?>, Object> compaction;
+
+	/**
+	 * The latest entry for each compaction key.
+	 */
+	private final ConcurrentMap<Object, Entry> latest = new ConcurrentHashMap<>();
+
+	/**
+	 * The entries of a compacted buffer by sequence number (the latest for each key,
+	 * and the ones without a key).
+	 */
+	private final ConcurrentSkipListMap<Long, Entry> keyed = new ConcurrentSkipListMap<>();
+
+	/**
+	 * The number of bytes charged to the budget for the messages in the ring.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong reads = new AtomicLong();
+
+	/**
+	 * The last time a message was added or read.
+	 */
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * The number of producers currently adding messages, or {@link #RETIRING} or
+	 * {@link #RETIRED}.
+	 */
+	private final AtomicInteger state = new AtomicInteger();
+
+	/**
+	 * Set when the buffer is closed, after which nothing is charged to (or released
+	 * from) the budget.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * What the timer holds on to, so that a buffer that is closed (or just dropped) can
+	 * be garbage collected before its messages are due to expire.
+	 */
+	private final WeakReference<RouteBuffer> self = new WeakReference<>(this);
+
+	public RouteBuffer(int capacity, BufferOverflow overflow, long timeoutMillis) {
+		this(null, capacity, overflow, timeoutMillis);
+	}
+
+	public RouteBuffer(String route, int capacity, BufferOverflow overflow,
+			long timeoutMillis) {
+		this(route, capacity, overflow, timeoutMillis, Collections.emptySet());
+	}
+
+	/**
+	 * @param route the path of the route (shared by all the entries, so that a reader of
+	 * entries from more than one buffer can tell them apart)
+	 * @param indexed the names of the headers to index
+	 */
+	public RouteBuffer(String route, int capacity, BufferOverflow overflow,
+			long timeoutMillis, Collection<String> indexed) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Buffer capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.timeoutMillis = timeoutMillis;
+		this.route = route;
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.index = new HashMap<>();
+		for (String name : indexed) {
+			this.index.put(name, new ConcurrentHashMap<>());
+		}
+	}
+
+	/**
+	 * Back this buffer with a log, carrying on from the last sequence number in the log.
+	 * Must be called before anything is added. The log is then the only limit on the
+	 * number of messages kept (the ring just keeps the newest in memory), so sending
+	 * never fails, whatever the overflow policy.
+	 */
+	public void attach(SegmentLog log) {
+		attach(log, 0);
+	}
+
+	/**
+	 * Like {@link #attach(SegmentLog)} but the log only keeps the newest messages up to
+	 * the limit (the rest are discarded, or new ones rejected, according to the
+	 * overflow policy).
+	 */
+	public void attach(SegmentLog log, long limit) {
+		this.limit = limit;
+		this.base = log.getNext();
+		this.tail.set(base);
+		this.head.set(log.getStart());
+		this.log = log;
+	}
+
+	/**
+	 * Remove messages from memory as soon as they expire, using a timer shared with
+	 * other buffers. Without it, expired messages are not returned, but they stay in
+	 * memory until they are overwritten or purged. Must be called before anything is
+	 * added.
+	 */
+	public void setExpiry(TimingWheel<Runnable> expiry) {
+		this.expiry = expiry;
+	}
+
+	/**
+	 * Only keep the latest message for each key. Messages without a key (null) are kept
+	 * until they are expired or evicted. The capacity of the buffer is then the number
+	 * of messages kept (so the number of keys, if they all have one), and the overflow
+	 * policy applies when a message with a new key arrives. Must be called before
+	 * anything is added, and not with a log.
+	 *
+	 * @param key the compaction key of a message
+	 */
+	public void setCompaction(Function<Message<?>, Object> key) {
+		this.compaction = key;
+	}
+
+	public boolean isCompacted() {
+		return compaction != null;
+	}
+
+	/**
+	 * Charge the memory used by messages in this buffer to a budget shared with other
+	 * buffers. Must be called before anything is added.
+	 */
+	public void setBudget(MemoryBudget budget) {
+		this.budget = budget;
+		budget.register(this);
+	}
+
+	/**
+	 * Add a message to the buffer.
+	 *
+	 * @return false if the buffer is full and the overflow policy is to reject
+	 */
+	public boolean send(Message<?> message) {
+		return add(message) != null;
+	}
+
+	/**
+	 * Add a message to the buffer.
+	 *
+	 * @return the new entry, or null if the buffer is full and the overflow policy is to
+	 * reject, or if it has been retired
+	 */
+	public Entry add(Message<?> message) {
+		while (true) {
+			int current = state.get();
+			if (current == RETIRED) {
+				return null;
+			}
+			if (current == RETIRING) {
+				// Only for as long as it takes to check the last used time
+				Thread.yield();
+			}
+			else if (state.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		try {
+			lastUsed = System.currentTimeMillis();
+			return append(message);
+		}
+		finally {
+			state.decrementAndGet();
+		}
+	}
+
+	private Entry append(Message<?> message) {
+		if (compaction != null) {
+			return compact(message);
+		}
+		SegmentLog log = this.log;
+		if (log != null) {
+			// Appends have to be in sequence order
+			synchronized (log) {
+				long sequence = tail.get();
+				if (limit > 0 && overflow == BufferOverflow.REJECT
+						&& sequence - head.get() >= limit) {
+					return null;
+				}
+				if (log.isTemporary()) {
+					// Only written to the log when it leaves the ring, but before the
+					// ring moves on, so readers always find it in one or the other
+					spill(log, sequence - capacity);
+				}
+				Entry entry = publish(tail.getAndIncrement(), message);
+				if (!log.isTemporary()) {
+					log.append(entry);
+				}
+				if (limit > 0) {
+					log.trim(sequence + 1 - limit);
+				}
+				return entry;
+			}
+		}
+		long sequence = claim();
+		if (sequence < 0) {
+			return null;
+		}
+		return publish(sequence, message);
+	}
+
+	private Entry publish(long sequence, Message<?> message) {
+		Entry entry = entry(sequence, message);
+		int index = index(sequence);
+		Entry current;
+		do {
+			current = slots.get(index);
+			if (current != null && current.sequence > sequence) {
+				// A faster producer already lapped us, so this message is overwritten
+				return entry;
+			}
+		}
+		while (!slots.compareAndSet(index, current, entry));
+		if (current != null) {
+			// Overwritten, so it is evicted from the index as well
+			removed(current);
+		}
+		if (!this.index.isEmpty()) {
+			index(entry);
+		}
+		published(entry);
+		return entry;
+	}
+
+	/**
+	 * Add a message to a compacted buffer, replacing the previous one with the same key.
+	 */
+	private Entry compact(Message<?> message) {
+		Object key = compaction.apply(message);
+		Entry entry;
+		Entry previous;
+		// Sequence numbers are claimed in the same order that entries are added, so a
+		// reader never moves its cursor past one that is not there yet
+		synchronized (keyed) {
+			previous = key == null ? null : latest.get(key);
+			if (previous == null && keyed.size() >= capacity) {
+				if (overflow == BufferOverflow.REJECT) {
+					expire();
+					if (keyed.size() >= capacity) {
+						return null;
+					}
+				}
+				else {
+					Map.Entry<Long, Entry> oldest = keyed.firstEntry();
+					if (oldest != null) {
+						discard(oldest.getValue());
+					}
+				}
+			}
+			entry = entry(tail.getAndIncrement(), message);
+			entry.key = key;
+			keyed.put(entry.sequence, entry);
+			if (key != null) {
+				latest.put(key, entry);
+			}
+			if (previous != null) {
+				// In the same critical section, so a capacity check never counts both
+				discard(previous);
+			}
+		}
+		published(entry);
+		return entry;
+	}
+
+	/**
+	 * Remove an entry from a compacted buffer (if it is still there).
+	 *
+	 * @return true if it was removed
+	 */
+	private boolean discard(Entry entry) {
+		if (!keyed.remove(entry.sequence, entry)) {
+			return false;
+		}
+		if (entry.key != null) {
+			latest.remove(entry.key, entry);
+		}
+		removed(entry);
+		return true;
+	}
+
+	private Entry entry(long sequence, Message<?> message) {
+		Entry entry = new Entry(route, sequence, message, System.currentTimeMillis());
+		entry.expires = expires(entry);
+		MemoryBudget budget = this.budget;
+		if (budget != null) {
+			// Before it is published, so whoever removes it knows how big it is
+			entry.size = budget.size(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Charge a new entry to the budget and schedule its expiry.
+	 */
+	private void published(Entry entry) {
+		MemoryBudget budget = this.budget;
+		if (budget != null && charge(entry.size)) {
+			budget.allocate(entry.size);
+		}
+		TimingWheel<Runnable> expiry = this.expiry;
+		if (expiry != null && entry.expires != Long.MAX_VALUE) {
+			long sequence = entry.sequence;
+			WeakReference<RouteBuffer> self = this.self;
+			// Only the sequence number, so the message is not kept in memory by the timer
+			// if it is removed some other way
+			expiry.add(entry.expires, () -> {
+				RouteBuffer buffer = self.get();
+				if (buffer != null) {
+					buffer.expire(sequence);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The time that a message expires: from its header if it has one, otherwise the
+	 * timeout for this buffer (if there is one) after it was added.
+	 */
+	private long expires(Entry entry) {
+		Object value = entry.message.getHeaders().get(MessageController.EXPIRES);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		if (value instanceof String) {
+			try {
+				return Long.parseLong((String) value);
+			}
+			catch (NumberFormatException e) {
+				// Use the default
+			}
+		}
+		return timeoutMillis > 0 ? entry.timestamp + timeoutMillis : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Remove an expired message from memory (if it is still there). The slot is not
+	 * emptied, since readers would think it was not published yet, so a placeholder
+	 * that has expired takes its place.
+	 */
+	private void expire(long sequence) {
+		if (closed) {
+			return;
+		}
+		if (compaction != null) {
+			Entry entry = keyed.get(sequence);
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				discard(entry);
+			}
+			return;
+		}
+		int index = index(sequence);
+		Entry entry = slots.get(index);
+		if (entry == null || entry.sequence != sequence
+				|| entry.expires > System.currentTimeMillis()) {
+			return;
+		}
+		Entry expired = new Entry(route, sequence, EXPIRED, entry.timestamp);
+		expired.expires = Long.MIN_VALUE;
+		if (slots.compareAndSet(index, entry, expired)) {
+			removed(entry);
+		}
+	}
+
+	/**
+	 * Clean up after an entry is removed from the ring.
+	 */
+	private void removed(Entry entry) {
+		if (!this.index.isEmpty()) {
+			unindex(entry);
+		}
+		MemoryBudget budget = this.budget;
+		if (budget != null && charge(-entry.size)) {
+			budget.release(entry.size);
+		}
+	}
+
+	/**
+	 * Add to the bytes charged to the budget, unless the buffer is closed (in which case
+	 * they have all been released already).
+	 *
+	 * @return true if the bytes were added
+	 */
+	private boolean charge(long delta) {
+		boolean[] charged = new boolean[1];
+		bytes.updateAndGet(current -> {
+			// The flag is set before the bytes are reset, so they are counted exactly once
+			charged[0] = !closed;
+			return charged[0] ? current + delta : current;
+		});
+		return charged[0];
+	}
+
+	/**
+	 * A snapshot of the messages currently buffered, oldest first.
+	 */
+	public List<Message<?>> receive() {
+		return receive(-1, 0, 0).getMessages();
+	}
+
+	/**
+	 * A snapshot of the messages currently buffered, oldest first, removing them from
+	 * the buffer.
+	 */
+	public List<Message<?>> drain() {
+		return drain(-1, 0, 0).getMessages();
+	}
+
+	/**
+	 * A snapshot of some of the messages currently buffered, oldest first.
+	 *
+	 * @param since only messages with a sequence number greater than this (negative
+	 * for all messages)
+	 * @param limit the maximum number of messages to return (zero or negative for no
+	 * limit)
+	 * @param last only the most recent messages up to this number (zero or negative
+	 * for all of them)
+	 */
+	public Slice receive(long since, int limit, int last) {
+		return receive(since, limit, last, Collections.emptyMap(), null);
+	}
+
+	/**
+	 * Like {@link #receive(long, int, int)} but only the messages that have the header
+	 * values and match the filter (if there is one) are returned, and counted towards
+	 * the limit. If any of the headers is indexed, the other messages are not even
+	 * looked at.
+	 */
+	public Slice receive(long since, int limit, int last, Map<String, String> headers,
+			Predicate<Message<?>> filter) {
+		reads.incrementAndGet();
+		lastUsed = System.currentTimeMillis();
+		if (compaction != null) {
+			return snapshot(since, limit, last, headers, filter);
+		}
+		long from = from(since, last);
+		Slice slice = new Slice();
+		slice.sequence = read(from, tail.get(), limit, slice.entries, headers, filter)
+				- 1;
+		return slice;
+	}
+
+	/**
+	 * Like {@link #receive(long, int, int)} but additionally removes all messages up to
+	 * and including the last one returned from the buffer.
+	 */
+	public Slice drain(long since, int limit, int last) {
+		return drain(since, limit, last, Collections.emptyMap(), null);
+	}
+
+	/**
+	 * Like {@link #receive(long, int, int, Map, Predicate)} but additionally removes all
+	 * messages up to and including the last one returned from the buffer (whether they
+	 * match or not).
+	 */
+	public Slice drain(long since, int limit, int last, Map<String, String> headers,
+			Predicate<Message<?>> filter) {
+		reads.incrementAndGet();
+		lastUsed = System.currentTimeMillis();
+		if (compaction != null) {
+			Slice slice = snapshot(since, limit, last, headers, filter);
+			for (Entry entry : keyed.headMap(slice.sequence, true).values()) {
+				discard(entry);
+			}
+			return slice;
+		}
+		long start = start();
+		long from = from(since, last);
+		Slice slice = new Slice();
+		long next = read(from, tail.get(), limit, slice.entries, headers, filter);
+		slice.sequence = next - 1;
+		purge(start, next);
+		return slice;
+	}
+
+	/**
+	 * Discard all the messages currently buffered.
+	 */
+	public void reset() {
+		if (compaction != null) {
+			keyed.values().forEach(this::discard);
+			return;
+		}
+		long from = start();
+		purge(from, read(from, tail.get(), 0, null, null));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Release the log (if there is one), making sure that everything in it is written
+	 * to disk, and the memory used by the messages. Messages that were due to expire
+	 * later are not released again.
+	 */
+	public void close() {
+		closed = true;
+		SegmentLog log = this.log;
+		if (log != null) {
+			log.close();
+		}
+		MemoryBudget budget = this.budget;
+		if (budget != null) {
+			budget.unregister(this);
+			budget.release(bytes.getAndSet(0));
+		}
+		// Nothing is read from a closed buffer, so let the messages go now
+		for (int i = 0; i < capacity; i++) {
+			slots.set(i, null);
+		}
+		keyed.clear();
+		latest.clear();
+		index.values().forEach(Map::clear);
+	}
+
+	/**
+	 * The sequence number of the newest message that was added (-1 if there are none).
+	 */
+	public long getSequence() {
+		return tail.get() - 1;
+	}
+
+	/**
+	 * The last time (in milliseconds) that a message was added or read.
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Stop accepting messages, but only if the buffer has not been used since the time
+	 * provided, and nothing is being added right now. Once it is retired,
+	 * {@link #add(Message)} returns null, so the sender can start a new buffer.
+	 *
+	 * @return true if the buffer was retired
+	 */
+	public boolean retire(long since) {
+		if (lastUsed > since || !state.compareAndSet(0, RETIRING)) {
+			return false;
+		}
+		// Nothing is being added now, but something might have been just before
+		if (lastUsed > since) {
+			state.set(0);
+			return false;
+		}
+		state.set(RETIRED);
+		return true;
+	}
+
+	public boolean isRetired() {
+		return state.get() == RETIRED;
+	}
+
+	/**
+	 * The number of bytes charged to the budget (if there is one) for the messages in
+	 * memory.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * The number of reads since the last time the count was aged.
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * Halve the read count, so that old reads count for less than new ones.
+	 */
+	void age() {
+		reads.updateAndGet(value -> value / 2);
+	}
+
+	/**
+	 * Evict the oldest messages from memory to free up some space. If there is a log
+	 * they can still be read from there, otherwise they are gone.
+	 *
+	 * @return the number of bytes freed
+	 */
+	long evict(long target) {
+		if (compaction != null) {
+			long freed = 0;
+			Iterator<Entry> entries = keyed.values().iterator();
+			while (freed < target && entries.hasNext()) {
+				Entry entry = entries.next();
+				if (discard(entry)) {
+					freed += entry.size;
+				}
+			}
+			return freed;
+		}
+		SegmentLog log = this.log;
+		if (log != null && log.isTemporary()) {
+			// Nothing can be added while they are written to the log
+			synchronized (log) {
+				return evict(target, log);
+			}
+		}
+		return evict(target, log);
+	}
+
+	private long evict(long target, SegmentLog log) {
+		long from = ring();
+		long end = tail.get();
+		long next = from;
+		long freed = 0;
+		while (freed < target && next < end) {
+			Entry entry = slots.get(index(next));
+			if (entry == null || entry.sequence < next) {
+				// Not published yet
+				break;
+			}
+			if (entry.sequence == next) {
+				freed += entry.size;
+			}
+			next++;
+		}
+		if (log == null) {
+			purge(from, next);
+			return freed;
+		}
+		if (log.isTemporary()) {
+			for (long sequence = from; sequence < next; sequence++) {
+				spill(log, sequence);
+			}
+		}
+		// Move the floor first, so readers go to the log before the slots are emptied
+		floor.accumulateAndGet(next, Math::max);
+		for (long sequence = from; sequence < next; sequence++) {
+			int index = index(sequence);
+			Entry entry = slots.get(index);
+			if (entry != null && entry.sequence == sequence
+					&& slots.compareAndSet(index, entry, null)) {
+				removed(entry);
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Write a message that is leaving the ring to a temporary log, unless it has already
+	 * gone (e.g. because it expired or was purged).
+	 */
+	private void spill(SegmentLog log, long sequence) {
+		if (sequence < 0) {
+			return;
+		}
+		Entry entry = slots.get(index(sequence));
+		if (entry != null && entry.sequence == sequence
+				&& entry.expires > System.currentTimeMillis()) {
+			log.append(entry);
+		}
+	}
+
+	private long claim() {
+		if (overflow == BufferOverflow.OVERWRITE) {
+			return tail.getAndIncrement();
+		}
+		boolean expired = false;
+		while (true) {
+			long current = tail.get();
+			if (current - head.get() >= capacity) {
+				if (expired) {
+					return -1;
+				}
+				expire();
+				expired = true;
+				continue;
+			}
+			if (tail.compareAndSet(current, current + 1)) {
+				return current;
+			}
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		if (compaction != null) {
+			for (Entry entry : keyed.values()) {
+				if (entry.expires <= now) {
+					discard(entry);
+				}
+			}
+			return;
+		}
+		long from = start();
+		long end = tail.get();
+		long next = from;
+		while (next < end) {
+			Entry entry = slots.get(index(next));
+			if (entry == null || entry.sequence < next) {
+				break;
+			}
+			if (entry.sequence == next && entry.expires > now) {
+				break;
+			}
+			next++;
+		}
+		purge(from, next);
+	}
+
+	/**
+	 * Like {@link #read(long, long, int, List, Predicate)} but only for messages with
+	 * the header values, using the index if any of the headers is indexed.
+	 *
+	 * @return the sequence number after the last one read
+	 */
+	private long read(long from, long to, int limit, List<Entry> result,
+			Map<String, String> headers, Predicate<Message<?>> filter) {
+		if (headers.isEmpty()) {
+			return read(from, to, limit, result, filter);
+		}
+		Predicate<Message<?>> matcher = message -> matches(message, headers)
+				&& (filter == null || filter.test(message));
+		long ring = Math.min(ring(), to);
+		if (log != null && from < ring) {
+			// Nothing is indexed in the log
+			from = read(log, from, ring, limit, result, matcher);
+			if (limit > 0 && result.size() >= limit) {
+				return from;
+			}
+			// A temporary log can end early, if the last messages never spilled over
+			from = Math.max(from, ring);
+		}
+		NavigableSet<Long> candidates = null;
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			Map<String, NavigableSet<Long>> values = index.get(header.getKey());
+			if (values != null) {
+				NavigableSet<Long> sequences = values.get(header.getValue());
+				if (sequences == null) {
+					// Nothing has that value
+					return from;
+				}
+				if (candidates == null || sequences.size() < candidates.size()) {
+					candidates = sequences;
+				}
+			}
+		}
+		if (candidates == null) {
+			return read(from, to, limit, result, matcher);
+		}
+		long now = System.currentTimeMillis();
+		// Only indexed messages have been published, but there might be a gap before
+		// one that is still being published, so the cursor only moves as far as the
+		// last message returned
+		long next = from;
+		for (Long sequence : candidates.subSet(from, to)) {
+			if (limit > 0 && result.size() >= limit) {
+				break;
+			}
+			Entry entry = slots.get(index(sequence));
+			if (entry == null || entry.sequence != sequence) {
+				// Evicted, but it was indexed too late to be removed then
+				candidates.remove(sequence);
+				continue;
+			}
+			if (entry.expires > now && matcher.test(entry.message)) {
+				result.add(entry);
+				next = sequence + 1;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Read the entries of a compacted buffer: the latest message for each key that was
+	 * added after the cursor, in the order they were added.
+	 */
+	private Slice snapshot(long since, int limit, int last, Map<String, String> headers,
+			Predicate<Message<?>> filter) {
+		long now = System.currentTimeMillis();
+		Slice slice = new Slice();
+		// A cursor from the future (e.g. from before a restart) starts again at the end
+		slice.sequence = Math.min(since, tail.get() - 1);
+		List<Entry> entries;
+		// Copied under the same lock as a replacement, so there is never more than one
+		// entry for a key (the iterator on its own is only weakly consistent)
+		synchronized (keyed) {
+			NavigableMap<Long, Entry> view = keyed.tailMap(slice.sequence, false);
+			if (last > 0) {
+				int count = 0;
+				for (Long sequence : view.descendingKeySet()) {
+					if (++count >= last) {
+						view = view.tailMap(sequence, true);
+						break;
+					}
+				}
+			}
+			entries = new ArrayList<>(view.values());
+		}
+		for (Entry entry : entries) {
+			if (limit > 0 && slice.entries.size() >= limit) {
+				break;
+			}
+			slice.sequence = entry.sequence;
+			if (entry.expires > now && matches(entry.message, headers)
+					&& (filter == null || filter.test(entry.message))) {
+				slice.entries.add(entry);
+			}
+		}
+		return slice;
+	}
+
+	private boolean matches(Message<?> message, Map<String, String> headers) {
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			Object value = message.getHeaders().get(header.getKey());
+			if (value == null || !header.getValue().equals(value.toString())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void index(Entry entry) {
+		for (Map.Entry<String, ConcurrentMap<String, NavigableSet<Long>>> values : index
+				.entrySet()) {
+			Object value = entry.message.getHeaders().get(values.getKey());
+			if (value != null) {
+				// Atomic per value, so an empty set is never removed while adding to it
+				values.getValue().compute(value.toString(), (key, sequences) -> {
+					NavigableSet<Long> result = sequences != null ? sequences
+							: new ConcurrentSkipListSet<>();
+					result.add(entry.sequence);
+					return result;
+				});
+			}
+		}
+	}
+
+	private void unindex(Entry entry) {
+		for (Map.Entry<String, ConcurrentMap<String, NavigableSet<Long>>> values : index
+				.entrySet()) {
+			Object value = entry.message.getHeaders().get(values.getKey());
+			if (value != null) {
+				values.getValue().computeIfPresent(value.toString(),
+						(key, sequences) -> {
+							sequences.remove(entry.sequence);
+							return sequences.isEmpty() ? null : sequences;
+						});
+			}
+		}
+	}
+
+	/**
+	 * Collect the published messages with sequence numbers from <code>from</code>
+	 * (inclusive) to <code>to</code> (exclusive), stopping early if there is a limit.
+	 * Also stops at the first slot that has been claimed but not yet published, so that
+	 * readers never see a gap that would be filled in later. Only the messages that
+	 * match the filter (if any) are collected.
+	 *
+	 * @return the sequence number after the last one read
+	 */
+	private long read(long from, long to, int limit, List<Entry> result,
+			Predicate<Message<?>> filter) {
+		long now = System.currentTimeMillis();
+		long next = from;
+		SegmentLog log = this.log;
+		long ring = Math.min(ring(), to);
+		if (log != null && next < ring) {
+			next = result == null ? ring : read(log, next, ring, limit, result, filter);
+			if (limit > 0 && result.size() >= limit) {
+				return next;
+			}
+			next = Math.max(next, ring);
+		}
+		while (next < to) {
+			if (limit > 0 && result != null && result.size() >= limit) {
+				break;
+			}
+			Entry entry = slots.get(index(next));
+			if (entry == null || entry.sequence < next) {
+				break;
+			}
+			if (entry.sequence == next && entry.expires > now && result != null
+					&& (filter == null || filter.test(entry.message))) {
+				result.add(entry);
+			}
+			next++;
+		}
+		return next;
+	}
+
+	/**
+	 * Collect messages from the log, for the sequence numbers that are older than the
+	 * ring.
+	 */
+	private long read(SegmentLog log, long from, long to, int limit, List<Entry> result,
+			Predicate<Message<?>> filter) {
+		long now = System.currentTimeMillis();
+		return log.read(from, to, entry -> {
+			if (limit > 0 && result.size() >= limit) {
+				return false;
+			}
+			entry.expires = expires(entry);
+			if (entry.expires > now
+					&& (filter == null || filter.test(entry.message))) {
+				result.add(entry);
+			}
+			return true;
+		});
+	}
+
+	private void purge(long from, long to) {
+		head.accumulateAndGet(to, Math::max);
+		SegmentLog log = this.log;
+		if (log != null) {
+			log.purge(to);
+			from = Math.max(from, ring());
+		}
+		for (long sequence = from; sequence < to; sequence++) {
+			int index = index(sequence);
+			Entry entry = slots.get(index);
+			if (entry != null && entry.sequence == sequence
+					&& slots.compareAndSet(index, entry, null)) {
+				removed(entry);
+			}
+		}
+	}
+
+	private long start() {
+		SegmentLog log = this.log;
+		if (log != null) {
+			long start = Math.max(head.get(), log.getStart());
+			return limit > 0 ? Math.max(start, tail.get() - limit) : start;
+		}
+		return ring();
+	}
+
+	/**
+	 * The oldest sequence number that might still be in the ring.
+	 */
+	private long ring() {
+		return Math.max(Math.max(head.get(), Math.max(base, floor.get())),
+				tail.get() - capacity);
+	}
+
+	private long from(long since, int last) {
+		long end = tail.get();
+		long from = Math.max(start(), since + 1);
+		if (last > 0) {
+			from = Math.max(from, end - last);
+		}
+		// A cursor from the future (e.g. from before a restart) starts again at the end
+		return Math.min(from, end);
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % capacity);
+	}
+
+	/**
+	 * The result of reading from a buffer: some messages and the sequence number of the
+	 * last one, which can be used as a cursor for the next read.
+	 */
+	static class Slice {
+
+		private final List<Entry> entries = new ArrayList<>();
+
+		private long sequence;
+
+		public List<Entry> getEntries() {
+			return entries;
+		}
+
+		public List<Message<?>> getMessages() {
+			List<Message<?>> messages = new ArrayList<>(entries.size());
+			for (Entry entry : entries) {
+				messages.add(entry.message);
+			}
+			return messages;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+	}
+
+	/**
+	 * A buffered message. It also caches the encoded forms of the payload, so that they
+	 * can be shared by all the clients that read it, instead of each one encoding it
+	 * again.
+	 */
+	static class Entry {
+
+		private final String route;
+
+		private final long sequence;
+
+		private final Message<?> message;
+
+		private final long timestamp;
+
+		private volatile byte[] json;
+
+		private volatile byte[] text;
+
+		/**
+		 * The number of bytes charged to the memory budget (if there is one).
+		 */
+		private long size;
+
+		/**
+		 * The time that the message expires.
+		 */
+		private long expires = Long.MAX_VALUE;
+
+		/**
+		 * The compaction key (if the buffer is compacted).
+		 */
+		private Object key;
+
+		public Entry(String route, long sequence, Message<?> message, long timestamp) {
+			this(route, sequence, message, timestamp, null);
+		}
+
+		/**
+		 * @param json the payload already encoded as JSON (or null if it is not known)
+		 */
+		public Entry(String route, long sequence, Message<?> message, long timestamp,
+				byte[] json) {
+			this.route = route;
+			this.sequence = sequence;
+			this.message = message;
+			this.timestamp = timestamp;
+			this.json = json;
+		}
+
+		public Message<?> getMessage() {
+			return message;
+		}
+
+		/**
+		 * The path of the route that the message was sent to (if known).
+		 */
+		public String getRoute() {
+			return route;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getExpires() {
+			return expires;
+		}
+
+		/**
+		 * The payload encoded as JSON, computed on first use.
+		 */
+		public byte[] getJson(Function<Object, byte[]> encoder) {
+			byte[] result = json;
+			if (result == null) {
+				// Another thread might do the same, but the result is the same anyway
+				result = encoder.apply(message.getPayload());
+				json = result;
+			}
+			return result;
+		}
+
+		/**
+		 * The payload encoded as the data of a server sent event, computed on first use.
+		 */
+		public byte[] getText(Function<Object, byte[]> encoder) {
+			byte[] result = text;
+			if (result == null) {
+				result = encoder.apply(message.getPayload());
+				text = result;
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Internal index of subscriptions to route key patterns, with one node per path
+ * segment. A <code>*</code> segment matches exactly one segment of a key, and a final
+ * <code>**</code> matches any number of them (including none), so
+ * <code>orders/eu/*</code> matches <code>orders/eu/1</code> and <code>orders/**</code>
+ * matches all of those and <code>orders</code> itself. Finding the subscribers for a key
+ * only follows the branches that can match it, so it depends on the depth of the key
+ * and not on the number of subscriptions. Lookups do not lock, so they can run on every
+ * message sent.
+ *
+ * @author Dave Syer
+ *
+ */
+class RouteTrie<T> {
+
+	private static final String ANY = "*";
+
+	private static final String REST = "**";
+
+	private final Node<T> root = new Node<>();
+
+	/**
+	 * Check if a route key is a pattern (has wildcard segments).
+	 */
+	public static boolean isPattern(String key) {
+		if (key == null) {
+			return false;
+		}
+		for (String segment : segments(key)) {
+			if (ANY.equals(segment) || REST.equals(segment)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a route key matches a pattern.
+	 */
+	public static boolean matches(String pattern, String key) {
+		RouteTrie<Boolean> trie = new RouteTrie<>();
+		trie.add(pattern, true);
+		boolean[] result = new boolean[1];
+		trie.match(key, value -> result[0] = true);
+		return result[0];
+	}
+
+	/**
+	 * Check that a pattern can be added to a trie.
+	 *
+	 * @throws IllegalArgumentException if it is not valid
+	 */
+	public static void validate(String pattern) {
+		String[] segments = segments(pattern);
+		for (int i = 0; i < segments.length - 1; i++) {
+			if (REST.equals(segments[i])) {
+				throw new IllegalArgumentException(
+						"Only the last segment can be '**' in: " + pattern);
+			}
+		}
+	}
+
+	public synchronized void add(String pattern, T value) {
+		validate(pattern);
+		Node<T> node = root;
+		String[] segments = segments(pattern);
+		for (int i = 0; i < segments.length; i++) {
+			if (REST.equals(segments[i])) {
+				node.rest.add(value);
+				return;
+			}
+			node = node.children.computeIfAbsent(segments[i], key -> new Node<>());
+		}
+		node.values.add(value);
+	}
+
+	public synchronized void remove(String pattern, T value) {
+		remove(root, segments(pattern), 0, value);
+	}
+
+	/**
+	 * Pass all the values subscribed to patterns that match the key to the consumer.
+	 */
+	public void match(String key, Consumer<T> consumer) {
+		match(root, key == null ? new String[0] : segments(key), 0, consumer);
+	}
+
+	public boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	private void match(Node<T> node, String[] segments, int index,
+			Consumer<T> consumer) {
+		node.rest.forEach(consumer);
+		if (index == segments.length) {
+			node.values.forEach(consumer);
+			return;
+		}
+		Node<T> child = node.children.get(segments[index]);
+		if (child != null) {
+			match(child, segments, index + 1, consumer);
+		}
+		child = node.children.get(ANY);
+		if (child != null) {
+			match(child, segments, index + 1, consumer);
+		}
+	}
+
+	private void remove(Node<T> node, String[] segments, int index, T value) {
+		if (index == segments.length) {
+			node.values.remove(value);
+			return;
+		}
+		if (REST.equals(segments[index])) {
+			node.rest.remove(value);
+			return;
+		}
+		Node<T> child = node.children.get(segments[index]);
+		if (child != null) {
+			remove(child, segments, index + 1, value);
+			if (child.isEmpty()) {
+				// Prune so that the trie does not grow with every pattern ever used
+				node.children.remove(segments[index], child);
+			}
+		}
+	}
+
+	private static String[] segments(String key) {
+		return key.split("/");
+	}
+
+	private static class Node<T> {
+
+		private final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+
+		private final Set<T> values = ConcurrentHashMap.newKeySet();
+
+		private final Set<T> rest = ConcurrentHashMap.newKeySet();
+
+		public boolean isEmpty() {
+			return values.isEmpty() && rest.isEmpty() && children.isEmpty();
+		}
+
+	}
+
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.integration.codec.Codec;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Internal durable log of the messages sent to a single route, so that they can be read
+ * after a restart, and so that the history is not limited by the heap. Messages are
+ * appended to segment files that are mapped into memory, and read straight from the
+ * mapped buffers. Each segment has a sparse index (one entry every few kilobytes) from
+ * sequence number to position, so a read starts close to the right place without
+ * scanning the whole segment. The oldest segments are deleted when the log is bigger
+ * than the retention limit, or when all their messages have been purged. A temporary log
+ * is just an overflow area for messages that do not fit in the heap: it is not
+ * recovered, and its files are deleted when it is closed. Payloads that are not text or
+ * bytes are encoded with the binder's {@link Codec} (if there is one), so they are read
+ * back as the same type, otherwise as JSON (so they are read back as maps and lists).
+ *
+ * @author Dave Syer
+ *
+ */
+class SegmentLog implements Closeable {
+
+	/**
+	 * Length, checksum, sequence, timestamp, type and length of the headers.
+	 */
+	private static final int RECORD_HEADER = 4 + 4 + 8 + 8 + 1 + 4;
+
+	private static final int INDEX_INTERVAL = 4096;
+
+	private static final String SUFFIX = ".log";
+
+	private static final byte TEXT = 0;
+
+	private static final byte BINARY = 1;
+
+	private static final byte JSON = 2;
+
+	private static final byte OBJECT = 3;
+
+	private final String route;
+
+	private final File directory;
+
+	private final long segmentBytes;
+
+	private final long retentionBytes;
+
+	private final ObjectMapper mapper;
+
+	private final Codec codec;
+
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+	private final File headFile;
+
+	private final boolean temporary;
+
+	/**
+	 * The sequence number of the next message to be appended.
+	 */
+	private volatile long next;
+
+	/**
+	 * The oldest sequence number that has not been purged.
+	 */
+	private volatile long head;
+
+	/**
+	 * @param route the path of the route that the messages were sent to
+	 * @param directory the directory for the segment files (created if necessary)
+	 * @param segmentBytes the size of each segment file
+	 * @param retentionBytes the maximum size of all the segments together (the oldest
+	 * ones are deleted to make room)
+	 * @param mapper to encode the headers, and payloads that are not text or bytes
+	 */
+	public SegmentLog(String route, File directory, long segmentBytes,
+			long retentionBytes, ObjectMapper mapper) throws IOException {
+		this(route, directory, segmentBytes, retentionBytes, mapper, null);
+	}
+
+	/**
+	 * Like {@link #SegmentLog(String, File, long, long, ObjectMapper)} but with a codec
+	 * for payloads that are not text or bytes (if it is not null).
+	 */
+	public SegmentLog(String route, File directory, long segmentBytes,
+			long retentionBytes, ObjectMapper mapper, Codec codec) throws IOException {
+		this(route, directory, segmentBytes, retentionBytes, mapper, codec, false);
+	}
+
+	private SegmentLog(String route, File directory, long segmentBytes,
+			long retentionBytes, ObjectMapper mapper, Codec codec, boolean temporary)
+			throws IOException {
+		this.route = route;
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.retentionBytes = retentionBytes;
+		this.mapper = mapper;
+		this.codec = codec;
+		this.temporary = temporary;
+		this.headFile = new File(directory, "head");
+		Files.createDirectories(directory.toPath());
+		if (!temporary) {
+			recover();
+		}
+	}
+
+	/**
+	 * A log in a new temporary directory, starting at the sequence number provided.
+	 * Messages are only removed from it when they are trimmed, or when it is closed. The
+	 * files are deleted when it is closed (not when the JVM exits, since there might be
+	 * any number of them), so the owner has to make sure that happens.
+	 */
+	public static SegmentLog temporary(String route, long next, long segmentBytes,
+			ObjectMapper mapper, Codec codec) throws IOException {
+		SegmentLog log = new SegmentLog(route,
+				Files.createTempDirectory("servlet-binder-").toFile(), segmentBytes,
+				Long.MAX_VALUE, mapper, codec, true);
+		log.next = next;
+		log.head = next;
+		return log;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Flag to say that this log is only an overflow area (see
+	 * {@link #temporary(String, long, long, ObjectMapper, Codec)}).
+	 */
+	public boolean isTemporary() {
+		return temporary;
+	}
+
+	/**
+	 * The sequence number that the next message appended will have.
+	 */
+	public long getNext() {
+		return next;
+	}
+
+	/**
+	 * The oldest sequence number that can still be read.
+	 */
+	public long getStart() {
+		long start = segments.isEmpty() ? next : segments.get(0).base;
+		return Math.max(start, head);
+	}
+
+	public synchronized void append(RouteBuffer.Entry entry) {
+		if (entry.getSequence() < next) {
+			return;
+		}
+		byte[] record = encode(entry);
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		try {
+			if (segment == null || segment.remaining() < record.length) {
+				segment = roll(entry.getSequence(), record.length);
+			}
+			segment.write(entry.getSequence(), record);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Cannot append to log for: " + route, e);
+		}
+		next = entry.getSequence() + 1;
+	}
+
+	/**
+	 * Visit the messages with sequence numbers from <code>from</code> (inclusive) to
+	 * <code>to</code> (exclusive), oldest first, until the visitor returns false.
+	 *
+	 * @return the sequence number after the last message accepted by the visitor
+	 */
+	public long read(long from, long to, Predicate<RouteBuffer.Entry> visitor) {
+		from = Math.max(from, getStart());
+		to = Math.min(to, next);
+		for (Segment segment : segments) {
+			if (segment.last < from) {
+				continue;
+			}
+			if (segment.base >= to) {
+				break;
+			}
+			long result = segment.read(from, to, visitor);
+			if (result < 0) {
+				return -result - 1;
+			}
+		}
+		return Math.max(from, to);
+	}
+
+	/**
+	 * Discard the messages before <code>to</code>, deleting the segments that only have
+	 * messages before it.
+	 */
+	public synchronized void purge(long to) {
+		if (to <= head) {
+			return;
+		}
+		head = Math.min(to, next);
+		if (!temporary) {
+			try {
+				// Replaced in one step, so a crash never leaves a partial file behind
+				File temp = new File(directory, headFile.getName() + ".tmp");
+				Files.write(temp.toPath(),
+						Long.toString(head).getBytes(StandardCharsets.UTF_8));
+				Files.move(temp.toPath(), headFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("Cannot purge log for: " + route, e);
+			}
+		}
+		trim(head);
+	}
+
+	/**
+	 * Delete the segments that only have messages before <code>to</code>. Cheap enough
+	 * to call after every append.
+	 */
+	public synchronized void trim(long to) {
+		while (segments.size() > 1 && segments.get(0).last < to) {
+			delete(segments.get(0));
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (temporary) {
+			while (!segments.isEmpty()) {
+				delete(segments.get(0));
+			}
+			directory.delete();
+			return;
+		}
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	private Segment roll(long base, int record) throws IOException {
+		Segment segment = new Segment(base,
+				new File(directory, String.format("%020d", base) + SUFFIX),
+				Math.max(segmentBytes, record));
+		segments.add(segment);
+		long total = 0;
+		for (Segment existing : segments) {
+			total += existing.capacity;
+		}
+		while (total > retentionBytes && segments.size() > 1) {
+			total -= segments.get(0).capacity;
+			delete(segments.get(0));
+		}
+		return segment;
+	}
+
+	private void delete(Segment segment) {
+		segments.remove(segment);
+		// The mapped buffer is released when it is garbage collected
+		segment.file.delete();
+	}
+
+	private void recover() throws IOException {
+		if (headFile.exists()) {
+			try {
+				head = Long.parseLong(new String(Files.readAllBytes(headFile.toPath()),
+						StandardCharsets.UTF_8).trim());
+			}
+			catch (NumberFormatException e) {
+				// Damaged (e.g. written by an older version that crashed), so nothing
+				// was purged as far as we know
+				head = 0;
+			}
+		}
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		next = head;
+		for (File file : files) {
+			long base = Long.parseLong(
+					file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+			Segment segment = new Segment(base, file, file.length());
+			segment.recover();
+			segments.add(segment);
+			next = Math.max(next, segment.last + 1);
+		}
+	}
+
+	private byte[] encode(RouteBuffer.Entry entry) {
+		Message<?> message = entry.getMessage();
+		Object payload = message.getPayload();
+		byte type;
+		byte[] body;
+		if (payload instanceof byte[]) {
+			type = BINARY;
+			body = (byte[]) payload;
+		}
+		else if (payload instanceof String) {
+			type = TEXT;
+			body = ((String) payload).getBytes(StandardCharsets.UTF_8);
+		}
+		else if (codec != null) {
+			type = OBJECT;
+			body = object(payload);
+		}
+		else {
+			type = JSON;
+			body = entry.getJson(this::json);
+		}
+		// Only simple header values survive a restart
+		Map<String, Object> headers = new LinkedHashMap<>();
+		for (Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+			Object value = header.getValue();
+			if (!MessageHeaders.ID.equals(header.getKey())
+					&& !MessageHeaders.TIMESTAMP.equals(header.getKey())
+					&& (value instanceof String || value instanceof Number
+							|| value instanceof Boolean)) {
+				headers.put(header.getKey(), value);
+			}
+		}
+		byte[] encoded = json(headers);
+		ByteBuffer record = ByteBuffer
+				.allocate(RECORD_HEADER + encoded.length + body.length);
+		// The length and checksum are filled in later
+		record.putInt(0);
+		record.putInt(0);
+		record.putLong(entry.getSequence());
+		record.putLong(entry.getTimestamp());
+		record.put(type);
+		record.putInt(encoded.length);
+		record.put(encoded);
+		record.put(body);
+		byte[] result = record.array();
+		CRC32 crc = new CRC32();
+		crc.update(result, 8, result.length - 8);
+		record.putInt(4, (int) crc.getValue());
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RouteBuffer.Entry decode(ByteBuffer buffer, int position, int length) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(position + 8);
+		long sequence = record.getLong();
+		long timestamp = record.getLong();
+		byte type = record.get();
+		byte[] headers = new byte[record.getInt()];
+		record.get(headers);
+		byte[] body = new byte[length - (RECORD_HEADER - 4) - headers.length];
+		record.get(body);
+		try {
+			Object payload;
+			if (type == BINARY) {
+				payload = body;
+			}
+			else if (type == TEXT) {
+				payload = new String(body, StandardCharsets.UTF_8);
+			}
+			else if (type == OBJECT) {
+				payload = object(body);
+			}
+			else {
+				payload = mapper.readValue(body, Object.class);
+			}
+			Message<?> message = MessageBuilder.withPayload(payload)
+					.copyHeaders(mapper.readValue(headers, Map.class)).build();
+			// The JSON is already encoded, so it can be sent as it is
+			return new RouteBuffer.Entry(route, sequence, message, timestamp,
+					type == JSON ? body : null);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Cannot decode message in log for: " + route,
+					e);
+		}
+	}
+
+	/**
+	 * Encode a payload with the codec, preceded by the name of its class, so that it can
+	 * be decoded without knowing what it was.
+	 */
+	private byte[] object(Object payload) {
+		byte[] type = payload.getClass().getName().getBytes(StandardCharsets.UTF_8);
+		try {
+			byte[] encoded = codec.encode(payload);
+			return ByteBuffer.allocate(4 + type.length + encoded.length)
+					.putInt(type.length).put(type).put(encoded).array();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Cannot encode payload for: " + route, e);
+		}
+	}
+
+	private Object object(byte[] body) throws IOException {
+		if (codec == null) {
+			throw new IllegalStateException(
+					"No codec to decode message in log for: " + route);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		byte[] name = new byte[buffer.getInt()];
+		buffer.get(name);
+		Class<?> type;
+		try {
+			type = ClassUtils.forName(new String(name, StandardCharsets.UTF_8),
+					ClassUtils.getDefaultClassLoader());
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalStateException(
+					"Cannot decode message in log for: " + route, e);
+		}
+		return codec.decode(Arrays.copyOfRange(body, buffer.position(), body.length),
+				type);
+	}
+
+	private byte[] json(Object value) {
+		try {
+			return mapper.writeValueAsBytes(value);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot encode as JSON", e);
+		}
+	}
+
+	/**
+	 * A single memory mapped file. Records are only ever appended by one thread at a
+	 * time (with the log locked), and readers only look as far as the limit, which is
+	 * published after each record is complete.
+	 */
+	private class Segment {
+
+		private final long base;
+
+		private final File file;
+
+		private final int capacity;
+
+		private final MappedByteBuffer buffer;
+
+		private volatile int limit;
+
+		private volatile long last;
+
+		private volatile long[] sequences = new long[16];
+
+		private volatile int[] positions = new int[16];
+
+		private volatile int indexed;
+
+		private int lastIndexed = -INDEX_INTERVAL;
+
+		Segment(long base, File file, long capacity) throws IOException {
+			this.base = base;
+			this.file = file;
+			this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE);
+			this.last = base - 1;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(this.capacity);
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						this.capacity);
+			}
+		}
+
+		int remaining() {
+			return capacity - limit;
+		}
+
+		void write(long sequence, byte[] record) {
+			int position = limit;
+			ByteBuffer target = buffer.duplicate();
+			// The length goes in last, so a partial record is never read back
+			target.position(position + 4);
+			target.put(record, 4, record.length - 4);
+			target.putInt(position, record.length - 4);
+			index(sequence, position);
+			last = sequence;
+			limit = position + record.length;
+		}
+
+		/**
+		 * @return the sequence number after the last one accepted, encoded as a
+		 * negative number if the visitor stopped, otherwise positive
+		 */
+		long read(long from, long to, Predicate<RouteBuffer.Entry> visitor) {
+			int end = limit;
+			int position = find(from);
+			while (position < end) {
+				int length = buffer.getInt(position);
+				long sequence = buffer.getLong(position + 8);
+				if (sequence >= to) {
+					return -to - 1;
+				}
+				if (sequence >= from && !visitor.test(decode(buffer, position, length))) {
+					return -sequence - 1;
+				}
+				position += length + 4;
+			}
+			return last + 1;
+		}
+
+		/**
+		 * The position of the last indexed record at or before the sequence number.
+		 */
+		private int find(long sequence) {
+			int count = indexed;
+			long[] sequences = this.sequences;
+			int[] positions = this.positions;
+			int index = Arrays.binarySearch(sequences, 0, count, sequence);
+			if (index < 0) {
+				index = -index - 2;
+			}
+			return index < 0 ? 0 : positions[index];
+		}
+
+		private void index(long sequence, int position) {
+			if (position - lastIndexed < INDEX_INTERVAL) {
+				return;
+			}
+			int count = indexed;
+			if (count == sequences.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+				sequences = Arrays.copyOf(sequences, count * 2);
+			}
+			positions[count] = position;
+			sequences[count] = sequence;
+			lastIndexed = position;
+			indexed = count + 1;
+		}
+
+		/**
+		 * Find the end of the complete records (e.g. after a crash), and rebuild the
+		 * index.
+		 */
+		void recover() {
+			int position = 0;
+			CRC32 crc = new CRC32();
+			while (position + RECORD_HEADER <= capacity) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || position + 4 + length > capacity) {
+					break;
+				}
+				byte[] bytes = new byte[length - 4];
+				ByteBuffer record = buffer.duplicate();
+				record.position(position + 8);
+				record.get(bytes);
+				crc.reset();
+				crc.update(bytes);
+				if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+					break;
+				}
+				long sequence = buffer.getLong(position + 8);
+				index(sequence, position);
+				last = sequence;
+				position += length + 4;
+			}
+			limit = position;
+		}
+
+	}
+
+}
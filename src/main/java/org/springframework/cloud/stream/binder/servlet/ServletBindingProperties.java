@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.List;
+
+/**
+ * Settings for a single channel that override the global ones. Anything that is not set
+ * (null) is inherited from the global setting with the same name.
+ *
+ * @author Dave Syer
+ *
+ */
+public class ServletBindingProperties {
+
+	/**
+	 * The maximum number of elements of a JSON array POSTed to this input channel that
+	 * are sent concurrently.
+	 */
+	private Integer concurrency;
+
+	/**
+	 * The maximum number of messages waiting to be written to each server sent event
+	 * client of this output channel.
+	 */
+	private Integer sseQueueCapacity;
+
+	/**
+	 * What to do when a server sent event client of this output channel has a full
+	 * queue.
+	 */
+	private SseOverflow sseOverflow;
+
+	/**
+	 * How long to collect messages for a server sent event client of this output channel
+	 * before writing them all at once (zero or negative to write them immediately).
+	 */
+	private Long sseFlushMillis;
+
+	/**
+	 * The maximum number of messages written to a server sent event client of this
+	 * output channel at once (they are written immediately if there are this many
+	 * waiting).
+	 */
+	private Integer sseFlushCount;
+
+	/**
+	 * The names of headers to index in the buffers of this output channel, so that
+	 * requests for messages with particular values of them do not have to look at all
+	 * the others.
+	 */
+	private List<String> indexedHeaders;
+
+	/**
+	 * Flag to say that the messages sent to this output channel are kept in a log on
+	 * disk, so that they survive a restart.
+	 */
+	private Boolean durable;
+
+	/**
+	 * The maximum number of messages kept in memory for each route of this output
+	 * channel. Older ones (up to the buffer capacity) are moved to a temporary file.
+	 */
+	private Integer spillThreshold;
+
+	/**
+	 * How long messages sent to this output channel are kept (unless they have an
+	 * expiry header).
+	 */
+	private Long bufferTimeoutSeconds;
+
+	/**
+	 * The name of a header (or failing that a field of the payload) that identifies the
+	 * messages sent to this output channel that replace each other. If it is set, the
+	 * buffer of each route only keeps the latest message for each value (up to the
+	 * buffer capacity), and it is only kept in memory.
+	 */
+	private String compactionKey;
+
+	public Integer getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(Integer concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public Integer getSseQueueCapacity() {
+		return sseQueueCapacity;
+	}
+
+	public void setSseQueueCapacity(Integer sseQueueCapacity) {
+		this.sseQueueCapacity = sseQueueCapacity;
+	}
+
+	public SseOverflow getSseOverflow() {
+		return sseOverflow;
+	}
+
+	public void setSseOverflow(SseOverflow sseOverflow) {
+		this.sseOverflow = sseOverflow;
+	}
+
+	public Long getSseFlushMillis() {
+		return sseFlushMillis;
+	}
+
+	public void setSseFlushMillis(Long sseFlushMillis) {
+		this.sseFlushMillis = sseFlushMillis;
+	}
+
+	public Integer getSseFlushCount() {
+		return sseFlushCount;
+	}
+
+	public void setSseFlushCount(Integer sseFlushCount) {
+		this.sseFlushCount = sseFlushCount;
+	}
+
+	public List<String> getIndexedHeaders() {
+		return indexedHeaders;
+	}
+
+	public void setIndexedHeaders(List<String> indexedHeaders) {
+		this.indexedHeaders = indexedHeaders;
+	}
+
+	public Boolean getDurable() {
+		return durable;
+	}
+
+	public void setDurable(Boolean durable) {
+		this.durable = durable;
+	}
+
+	public Long getBufferTimeoutSeconds() {
+		return bufferTimeoutSeconds;
+	}
+
+	public void setBufferTimeoutSeconds(Long bufferTimeoutSeconds) {
+		this.bufferTimeoutSeconds = bufferTimeoutSeconds;
+	}
+
+	public String getCompactionKey() {
+		return compactionKey;
+	}
+
+	public void setCompactionKey(String compactionKey) {
+		this.compactionKey = compactionKey;
+	}
+
+	public Integer getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(Integer spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.springframework.http.MediaType;
+import org.springframework.messaging.Message;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+/**
+ * Internal wrapper for a server sent event connection with its own bounded queue of
+ * messages waiting to be written. The messages are written by a task on an executor, so
+ * a slow client never holds up the thread that sends them, and if the queue is full the
+ * overflow policy decides what to do. At most one task writes to a client at a time, so
+ * the messages are written in order. Each task writes all the messages that are waiting
+ * (up to a limit) as a single chunk with a single flush, and it can optionally wait for a
+ * short window first, to collect more messages on a busy route. The events are formatted
+ * here, so the emitter is a plain one (the response has to have a content type of
+ * <code>text/event-stream</code>), and the bytes are written as they are. A write that
+ * blocks for longer than the write timeout (a stalled client) disconnects the client:
+ * nothing more is queued for it, and the response is completed as soon as the blocked
+ * write returns (or fails). The write itself cannot be interrupted, so the thread that
+ * is doing it stays blocked until then (normally until the container's own socket write
+ * timeout).
+ *
+ * @author Dave Syer
+ *
+ */
+class SseClient {
+
+	private static final byte[] ID = "id:".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] EVENT = "event:".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] DATA = "data:".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final ResponseBodyEmitter emitter;
+
+	private final Executor executor;
+
+	private final int capacity;
+
+	private final SseOverflow overflow;
+
+	private final Function<Object, byte[]> encoder;
+
+	private final ArrayDeque<RouteBuffer.Entry> queue = new ArrayDeque<>();
+
+	private ScheduledExecutorService scheduler;
+
+	private long flushMillis;
+
+	private int flushCount = 64;
+
+	private ScheduledFuture<?> flush;
+
+	private ScheduledExecutorService watchdog;
+
+	private long writeTimeout;
+
+	private boolean stalled;
+
+	private Runnable onClose;
+
+	private Predicate<Message<?>> filter;
+
+	private Function<String, String> events;
+
+	private Map<String, Long> cursors;
+
+	private boolean started;
+
+	private boolean writing;
+
+	private boolean closed;
+
+	private boolean heartbeat;
+
+	private volatile long lastWrite = System.currentTimeMillis();
+
+	private volatile long lastMessage = System.currentTimeMillis();
+
+	public SseClient(ResponseBodyEmitter emitter, Executor executor, int capacity,
+			SseOverflow overflow, Function<Object, byte[]> encoder) {
+		this.emitter = emitter;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.encoder = encoder;
+		emitter.onCompletion(this::close);
+		emitter.onTimeout(this::close);
+	}
+
+	public ResponseBodyEmitter getEmitter() {
+		return emitter;
+	}
+
+	/**
+	 * Collect messages for up to <code>millis</code> (if positive) before writing them,
+	 * unless there are already <code>count</code> waiting. No more than
+	 * <code>count</code> messages are written at once.
+	 */
+	public synchronized void setFlushWindow(ScheduledExecutorService scheduler,
+			long millis, int count) {
+		this.scheduler = scheduler;
+		this.flushMillis = millis;
+		this.flushCount = Math.max(count, 1);
+	}
+
+	/**
+	 * Disconnect the client if a single write blocks for more than <code>millis</code>
+	 * (if positive).
+	 */
+	public synchronized void setWriteTimeout(ScheduledExecutorService scheduler,
+			long millis) {
+		this.watchdog = scheduler;
+		this.writeTimeout = millis;
+	}
+
+	/**
+	 * Stream messages from more than one route: each event is named after its route,
+	 * and the id of each event is the sequence numbers of the last event written from
+	 * every route (like <code>foo:12,bar:7</code>), so a client can resume them all if it
+	 * reconnects. Messages that the client has already seen (according to those
+	 * sequence numbers) are skipped.
+	 *
+	 * @param events the event name for a route path
+	 * @param cursors the sequence numbers the client has already seen (negative for
+	 * none), keyed by event name, in the order they appear in the ids
+	 */
+	public synchronized void multiplex(Function<String, String> events,
+			Map<String, Long> cursors) {
+		this.events = events;
+		this.cursors = new LinkedHashMap<>(cursors);
+	}
+
+	/**
+	 * Only send the messages that match the filter (if it is not null).
+	 */
+	public synchronized void setFilter(Predicate<Message<?>> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * A callback for when the connection is closed, for whatever reason.
+	 */
+	public synchronized void onClose(Runnable callback) {
+		this.onClose = callback;
+	}
+
+	/**
+	 * Start writing, beginning with the backlog of messages that were already buffered
+	 * when the client connected. Anything offered in the meantime that is also in the
+	 * backlog is only written once.
+	 */
+	public synchronized void start(List<RouteBuffer.Entry> backlog) {
+		if (!backlog.isEmpty()) {
+			Map<String, Long> last = new HashMap<>();
+			for (RouteBuffer.Entry entry : backlog) {
+				last.put(entry.getRoute(), entry.getSequence());
+			}
+			for (Iterator<RouteBuffer.Entry> iterator = queue.iterator(); iterator
+					.hasNext();) {
+				RouteBuffer.Entry entry = iterator.next();
+				Long sequence = last.get(entry.getRoute());
+				if (sequence != null && entry.getSequence() <= sequence) {
+					iterator.remove();
+				}
+			}
+			for (int i = backlog.size(); i-- > 0;) {
+				if (filter == null || filter.test(backlog.get(i).getMessage())) {
+					queue.addFirst(backlog.get(i));
+				}
+			}
+		}
+		started = true;
+		schedule();
+	}
+
+	/**
+	 * Queue a message to be written, applying the overflow policy if the queue is full.
+	 * Never blocks waiting for the client.
+	 */
+	public synchronized void offer(RouteBuffer.Entry entry) {
+		if (closed) {
+			return;
+		}
+		if (filter != null && !filter.test(entry.getMessage())) {
+			// Not wanted, so it does not take up space in the queue
+			return;
+		}
+		if (queue.size() >= capacity) {
+			switch (overflow) {
+			case DROP_NEWEST:
+				return;
+			case CONFLATE:
+				queue.clear();
+				break;
+			case DISCONNECT:
+				expire();
+				return;
+			default:
+				queue.poll();
+			}
+		}
+		queue.add(entry);
+		if (flush != null && queue.size() >= flushCount && flush.cancel(false)) {
+			// Enough for a whole chunk, so no need to wait any longer
+			flush = null;
+			execute(this::write);
+			return;
+		}
+		schedule();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * The time anything (including a heartbeat) was last written.
+	 */
+	public long getLastWrite() {
+		return lastWrite;
+	}
+
+	/**
+	 * The time a message was last written.
+	 */
+	public long getLastMessage() {
+		return lastMessage;
+	}
+
+	/**
+	 * Write an empty comment, so that a dead connection is discovered (or a live one is
+	 * kept open by any proxies in between), unless something is about to be written
+	 * anyway.
+	 */
+	public synchronized void heartbeat() {
+		if (!started || writing || closed) {
+			return;
+		}
+		heartbeat = true;
+		writing = true;
+		execute(this::write);
+	}
+
+	/**
+	 * Close the connection because it has been idle for too long (the client can
+	 * reconnect).
+	 */
+	public synchronized void expire() {
+		if (closed) {
+			return;
+		}
+		close();
+		// Completing might have to wait for a write in progress
+		execute(emitter::complete);
+	}
+
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		queue.clear();
+		if (onClose != null) {
+			onClose.run();
+		}
+	}
+
+	private void schedule() {
+		if (!started || writing || closed || queue.isEmpty()) {
+			return;
+		}
+		writing = true;
+		if (flushMillis > 0 && queue.size() < flushCount) {
+			flush = scheduler.schedule(() -> execute(this::write), flushMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		else {
+			execute(this::write);
+		}
+	}
+
+	private void execute(Runnable task) {
+		try {
+			executor.execute(task);
+		}
+		catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	private void write() {
+		List<RouteBuffer.Entry> entries = new ArrayList<>();
+		boolean beat;
+		synchronized (this) {
+			flush = null;
+			while (!closed && entries.size() < flushCount && !queue.isEmpty()) {
+				entries.add(queue.poll());
+			}
+			beat = heartbeat && !closed;
+			heartbeat = false;
+			if (entries.isEmpty() && !beat) {
+				writing = false;
+				return;
+			}
+		}
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for (RouteBuffer.Entry entry : entries) {
+			frame(frames, entry);
+		}
+		boolean messages = frames.size() > 0;
+		if (!messages && beat) {
+			frames.write(HEARTBEAT, 0, HEARTBEAT.length);
+		}
+		if (frames.size() > 0) {
+			ScheduledFuture<?> timeout = null;
+			synchronized (this) {
+				if (watchdog != null && writeTimeout > 0) {
+					timeout = watchdog.schedule(this::stall, writeTimeout,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+			try {
+				emitter.send(frames.toByteArray(), MediaType.TEXT_EVENT_STREAM);
+				lastWrite = System.currentTimeMillis();
+				if (messages) {
+					lastMessage = lastWrite;
+				}
+			}
+			catch (IOException | IllegalStateException e) {
+				// The client went away (or the emitter was already completed)
+				close();
+			}
+			finally {
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+		}
+		boolean complete;
+		synchronized (this) {
+			writing = false;
+			complete = stalled;
+			stalled = false;
+			schedule();
+		}
+		if (complete) {
+			// The emitter is locked while it writes, so it can only be completed now
+			try {
+				emitter.complete();
+			}
+			catch (IllegalStateException e) {
+				// Already completed
+			}
+		}
+	}
+
+	/**
+	 * A write has been blocked for too long, so stop sending to this client.
+	 */
+	private synchronized void stall() {
+		if (closed) {
+			return;
+		}
+		stalled = true;
+		close();
+	}
+
+	/**
+	 * Write the entry as a single event, with its sequence number as the id (so a client
+	 * can resume from there if it reconnects) and one data field per line.
+	 */
+	private void frame(ByteArrayOutputStream frames, RouteBuffer.Entry entry) {
+		byte[] id;
+		if (events != null) {
+			String name = events.apply(entry.getRoute());
+			// Only ever touched by the writer, so no need to lock
+			Long cursor = cursors.get(name);
+			if (cursor != null && entry.getSequence() <= cursor) {
+				// Already seen (e.g. in the backlog, or before reconnecting)
+				return;
+			}
+			byte[] event = name.getBytes(StandardCharsets.UTF_8);
+			frames.write(EVENT, 0, EVENT.length);
+			frames.write(event, 0, event.length);
+			frames.write('\n');
+			cursors.put(name, entry.getSequence());
+			id = cursor().getBytes(StandardCharsets.UTF_8);
+		}
+		else {
+			id = Long.toString(entry.getSequence()).getBytes(StandardCharsets.UTF_8);
+		}
+		frames.write(ID, 0, ID.length);
+		frames.write(id, 0, id.length);
+		frames.write('\n');
+		byte[] data = entry.getText(encoder);
+		int start = 0;
+		for (int i = 0; i <= data.length; i++) {
+			if (i == data.length || data[i] == '\n') {
+				frames.write(DATA, 0, DATA.length);
+				frames.write(data, start, i - start);
+				frames.write('\n');
+				start = i + 1;
+			}
+		}
+		frames.write('\n');
+	}
+
+	private String cursor() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+			if (cursor.getValue() >= 0) {
+				if (builder.length() > 0) {
+					builder.append(",");
+				}
+				builder.append(cursor.getKey()).append(":").append(cursor.getValue());
+			}
+		}
+		return builder.toString();
+	}
+
+}
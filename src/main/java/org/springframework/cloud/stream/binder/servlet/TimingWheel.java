@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Internal hierarchical timing wheel for the deadlines of buffered messages, so that
+ * any number of them can be scheduled for a constant cost, and all of them are handled
+ * by a single periodic task. Each level has 64 slots, and each slot on a level spans a
+ * whole revolution of the level below. A deadline goes in the lowest level that reaches
+ * it, and moves down a level each time the level below comes round to it, until it is
+ * due. With a 10ms tick the levels reach 640ms, 41s, 44min and 47h, and anything
+ * further away waits in an overflow queue. A deadline scheduled at the same time as a
+ * tick might be handled late (by up to a revolution of its level), so whatever the
+ * deadline is for should also be checked when it matters.
+ *
+ * @author Dave Syer
+ *
+ */
+class TimingWheel<T> {
+
+	private static final int SHIFT = 6;
+
+	private static final int SLOTS = 1 << SHIFT;
+
+	private final long tickMillis;
+
+	private final Consumer<T> handler;
+
+	private final List<List<Queue<Timeout<T>>>> levels;
+
+	private final Queue<Timeout<T>> overflow = new ConcurrentLinkedQueue<>();
+
+	private final ScheduledFuture<?> task;
+
+	/**
+	 * The last tick that was processed (in units of the tick since the epoch).
+	 */
+	private volatile long ticks;
+
+	/**
+	 * @param scheduler the scheduler for the ticks
+	 * @param tickMillis the interval between ticks (the resolution of the wheel)
+	 * @param levels the number of levels in the wheel
+	 * @param handler the callback for items that are due
+	 */
+	public TimingWheel(ScheduledExecutorService scheduler, long tickMillis, int levels,
+			Consumer<T> handler) {
+		this(tickMillis, levels, System.currentTimeMillis(), handler, scheduler);
+	}
+
+	TimingWheel(long tickMillis, int levels, long now, Consumer<T> handler) {
+		this(tickMillis, levels, now, handler, null);
+	}
+
+	private TimingWheel(long tickMillis, int levels, long now, Consumer<T> handler,
+			ScheduledExecutorService scheduler) {
+		this.tickMillis = tickMillis;
+		this.handler = handler;
+		this.ticks = now / tickMillis;
+		this.levels = new ArrayList<>(levels);
+		for (int i = 0; i < levels; i++) {
+			List<Queue<Timeout<T>>> slots = new ArrayList<>(SLOTS);
+			for (int j = 0; j < SLOTS; j++) {
+				slots.add(new ConcurrentLinkedQueue<>());
+			}
+			this.levels.add(slots);
+		}
+		this.task = scheduler == null ? null
+				: scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis,
+						TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedule an item. If it is already due it is handled straight away.
+	 *
+	 * @param deadline the time (in milliseconds since the epoch) the item is due
+	 */
+	public void add(long deadline, T item) {
+		// Rounded up, so it is never handled early
+		place(new Timeout<>((deadline + tickMillis - 1) / tickMillis, item), ticks);
+	}
+
+	public void stop() {
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	void tick() {
+		tick(System.currentTimeMillis());
+	}
+
+	/**
+	 * Process all the ticks up to the time provided.
+	 */
+	synchronized void tick(long now) {
+		long target = now / tickMillis;
+		while (ticks < target) {
+			long next = ticks + 1;
+			ticks = next;
+			// Move deadlines down from the levels that have come round to a new slot
+			for (int level = levels.size() - 1; level > 0; level--) {
+				if ((next & ((1L << (SHIFT * level)) - 1)) == 0) {
+					if (level == levels.size() - 1) {
+						// Take them all out first, since some go straight back in
+						List<Timeout<T>> pending = new ArrayList<>();
+						Timeout<T> timeout;
+						while ((timeout = overflow.poll()) != null) {
+							pending.add(timeout);
+						}
+						pending.forEach(item -> place(item, next));
+					}
+					cascade(slot(level, next), next);
+				}
+			}
+			cascade(slot(0, next), next);
+		}
+	}
+
+	private void cascade(Queue<Timeout<T>> slot, long current) {
+		Timeout<T> timeout;
+		// Everything in the slot is due before the next revolution, so none of them go
+		// back in the same slot
+		while ((timeout = slot.poll()) != null) {
+			place(timeout, current);
+		}
+	}
+
+	private void place(Timeout<T> timeout, long current) {
+		long delta = timeout.tick - current;
+		if (delta <= 0) {
+			handler.accept(timeout.item);
+			return;
+		}
+		for (int level = 0; level < levels.size(); level++) {
+			if (delta < 1L << (SHIFT * (level + 1))) {
+				slot(level, timeout.tick).add(timeout);
+				return;
+			}
+		}
+		overflow.add(timeout);
+	}
+
+	private Queue<Timeout<T>> slot(int level, long tick) {
+		return levels.get(level).get((int) ((tick >>> (SHIFT * level)) & (SLOTS - 1)));
+	}
+
+	private static class Timeout<T> {
+
+		private final long tick;
+
+		private final T item;
+
+		Timeout(long tick, T item) {
+			this.tick = tick;
+			this.item = item;
+		}
+
+	}
+
+}
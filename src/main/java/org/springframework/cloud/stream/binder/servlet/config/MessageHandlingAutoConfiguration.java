@@ -16,20 +16,35 @@
 
 package org.springframework.cloud.stream.binder.servlet.config;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.autoconfigure.AutoConfigureBefore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.stream.binder.servlet.BufferOverflow;
 import org.springframework.cloud.stream.binder.servlet.EnabledBindings;
 import org.springframework.cloud.stream.binder.servlet.MessageController;
 import org.springframework.cloud.stream.binder.servlet.RouteRegistry;
+import org.springframework.cloud.stream.binder.servlet.ServletBindingProperties;
+import org.springframework.cloud.stream.binder.servlet.SseOverflow;
 import org.springframework.cloud.stream.config.BindingServiceProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.integration.codec.Codec;
 
 /**
  * @author Dave Syer
@@ -40,22 +55,175 @@ import org.springframework.context.annotation.Configuration;
 @ConditionalOnProperty(name = "spring.cloud.stream.enabled", havingValue = "true", matchIfMissing = true)
 public class MessageHandlingAutoConfiguration {
 
+	/**
+	 * The name of an optional {@link Executor} bean to use for sending payloads to input
+	 * channels concurrently.
+	 */
+	public static final String EXECUTOR_BEAN_NAME = "servletBinderExecutor";
+
 	/**
 	 * The prefix for the HTTP endpoint.
 	 */
 	private String prefix = "stream";
 
 	/**
-	 * The buffer timeout for messages sent to output channels, and accessed via GET.
+	 * How long each message sent to an output channel is kept, unless it has its own
+	 * expiry time in a header (see MessageController.EXPIRES).
 	 */
 	private long bufferTimeoutSeconds = 10;
 
+	/**
+	 * The maximum number of messages buffered per route for output channels.
+	 */
+	private int bufferCapacity = 1000;
+
+	/**
+	 * What to do when a route buffer is full: overwrite the oldest message, or reject
+	 * the new one.
+	 */
+	private BufferOverflow bufferOverflow = BufferOverflow.OVERWRITE;
+
 	/**
 	 * The receive timeout for messages in a send-and-receive from a linked output via
 	 * POST.
 	 */
 	private long receiveTimeoutMillis = 100;
 
+	/**
+	 * The maximum number of elements of a JSON array POSTed to an input channel with a
+	 * linked output that are sent concurrently. The replies are returned in the same
+	 * order as the inputs. The default (1) sends them one at a time.
+	 */
+	private int concurrency = 1;
+
+	/**
+	 * The maximum number of messages waiting to be written to each server sent event
+	 * client. Messages are written to each client by a separate task, so a slow client
+	 * does not hold up the sender.
+	 */
+	private int sseQueueCapacity = 100;
+
+	/**
+	 * What to do when a server sent event client has a full queue: drop the oldest
+	 * message, drop the newest, conflate (drop all but the newest), or disconnect.
+	 */
+	private SseOverflow sseOverflow = SseOverflow.DROP_OLDEST;
+
+	/**
+	 * How long to collect messages for a server sent event client before writing them
+	 * all in a single chunk. The default (0) writes them as soon as possible (but still
+	 * together if more than one is waiting).
+	 */
+	private long sseFlushMillis;
+
+	/**
+	 * The maximum number of messages written to a server sent event client in a single
+	 * chunk. If there are this many waiting they are written without waiting for the
+	 * rest of the flush window.
+	 */
+	private int sseFlushCount = 64;
+
+	/**
+	 * The interval between heartbeats (empty comments) sent to server sent event clients
+	 * that have not had anything else written, so that dead connections are discovered.
+	 * Zero or negative for no heartbeats.
+	 */
+	private long sseHeartbeatSeconds = 15;
+
+	/**
+	 * How long a server sent event client can go without a message before the
+	 * connection is closed. The default (0) is to never close it.
+	 */
+	private long sseIdleTimeoutSeconds;
+
+	/**
+	 * How long a single write to a server sent event client can block before the client
+	 * is disconnected: nothing more is queued for it, and the response is completed when
+	 * the write returns. The write itself cannot be interrupted, so the writer thread is
+	 * only free again when the container gives up on the connection. Zero or negative
+	 * for no limit.
+	 */
+	private long sseWriteTimeoutMillis = 10000;
+
+	/**
+	 * The number of threads writing to server sent event clients. A stalled client holds
+	 * one of them until the container's own socket write timeout fails the write.
+	 */
+	private int sseWriterThreads = 64;
+
+	/**
+	 * The longest time that a GET with a wait parameter waits for a message. Longer
+	 * waits are cut short to this. Zero or negative for no limit.
+	 */
+	private long maxWaitMillis = 60000;
+
+	/**
+	 * Flag to say that the messages sent to output channels are appended to a log on
+	 * disk (memory mapped segment files, one log per route), so they survive a restart
+	 * and the history is not limited by the buffer capacity. Set the buffer timeout to 0
+	 * to keep all the history until it is purged or the retention limit is reached.
+	 */
+	private boolean durable;
+
+	/**
+	 * The directory for the logs of durable routes. Defaults to a directory called
+	 * "servlet-binder" in the system temporary directory.
+	 */
+	private File durableDirectory;
+
+	/**
+	 * The size of each segment file in the log of a durable route.
+	 */
+	private long durableSegmentBytes = 64 * 1024 * 1024;
+
+	/**
+	 * The maximum size of the log of a durable route. The oldest segments are deleted
+	 * when it is bigger.
+	 */
+	private long durableRetentionBytes = 1024 * 1024 * 1024;
+
+	/**
+	 * The maximum number of messages kept in memory for each route of an output
+	 * channel. Older ones (up to the buffer capacity) are moved to a temporary file (a
+	 * segment log like the durable ones), so a burst does not fill the heap. The default
+	 * (0) is to keep them all in memory.
+	 */
+	private int spillThreshold;
+
+	/**
+	 * The maximum number of bytes used by the messages in memory in all the route
+	 * buffers together (estimated from the encoded payloads). When it is exceeded, the
+	 * oldest messages are evicted from the routes that are read least often for the
+	 * memory they use. The default (0) is no limit.
+	 */
+	private long bufferMemoryBytes;
+
+	/**
+	 * The largest binary body that a POST can send (anything bigger is rejected with a
+	 * 413). Zero or negative for no limit.
+	 */
+	private long maxBodyBytes = 10 * 1024 * 1024;
+
+	/**
+	 * How long a route can go without messages being sent or read, and without
+	 * subscribers, before its buffer is removed. The default (0) is to keep them for
+	 * ever.
+	 */
+	private long routeIdleSeconds;
+
+	/**
+	 * The maximum number of route buffers. If there are more, the ones that have been
+	 * used least recently (and have no subscribers) are removed. The default (0) is no
+	 * limit.
+	 */
+	private int maxRoutes;
+
+	/**
+	 * Settings for individual channels (keyed by channel name) that override the global
+	 * ones.
+	 */
+	private Map<String, ServletBindingProperties> bindings = new LinkedHashMap<>();
+
 	public String getPrefix() {
 		return prefix;
 	}
@@ -72,6 +240,22 @@ public class MessageHandlingAutoConfiguration {
 		this.bufferTimeoutSeconds = bufferTimeoutSeconds;
 	}
 
+	public int getBufferCapacity() {
+		return bufferCapacity;
+	}
+
+	public void setBufferCapacity(int bufferCapacity) {
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	public BufferOverflow getBufferOverflow() {
+		return bufferOverflow;
+	}
+
+	public void setBufferOverflow(BufferOverflow bufferOverflow) {
+		this.bufferOverflow = bufferOverflow;
+	}
+
 	public long getReceiveTimeoutMillis() {
 		return receiveTimeoutMillis;
 	}
@@ -80,12 +264,204 @@ public class MessageHandlingAutoConfiguration {
 		this.receiveTimeoutMillis = receiveTimeoutMillis;
 	}
 
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public int getSseQueueCapacity() {
+		return sseQueueCapacity;
+	}
+
+	public void setSseQueueCapacity(int sseQueueCapacity) {
+		this.sseQueueCapacity = sseQueueCapacity;
+	}
+
+	public SseOverflow getSseOverflow() {
+		return sseOverflow;
+	}
+
+	public void setSseOverflow(SseOverflow sseOverflow) {
+		this.sseOverflow = sseOverflow;
+	}
+
+	public long getSseFlushMillis() {
+		return sseFlushMillis;
+	}
+
+	public void setSseFlushMillis(long sseFlushMillis) {
+		this.sseFlushMillis = sseFlushMillis;
+	}
+
+	public int getSseFlushCount() {
+		return sseFlushCount;
+	}
+
+	public void setSseFlushCount(int sseFlushCount) {
+		this.sseFlushCount = sseFlushCount;
+	}
+
+	public long getSseHeartbeatSeconds() {
+		return sseHeartbeatSeconds;
+	}
+
+	public void setSseHeartbeatSeconds(long sseHeartbeatSeconds) {
+		this.sseHeartbeatSeconds = sseHeartbeatSeconds;
+	}
+
+	public long getSseIdleTimeoutSeconds() {
+		return sseIdleTimeoutSeconds;
+	}
+
+	public void setSseIdleTimeoutSeconds(long sseIdleTimeoutSeconds) {
+		this.sseIdleTimeoutSeconds = sseIdleTimeoutSeconds;
+	}
+
+	public long getSseWriteTimeoutMillis() {
+		return sseWriteTimeoutMillis;
+	}
+
+	public void setSseWriteTimeoutMillis(long sseWriteTimeoutMillis) {
+		this.sseWriteTimeoutMillis = sseWriteTimeoutMillis;
+	}
+
+	public int getSseWriterThreads() {
+		return sseWriterThreads;
+	}
+
+	public void setSseWriterThreads(int sseWriterThreads) {
+		this.sseWriterThreads = sseWriterThreads;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	public boolean isDurable() {
+		return durable;
+	}
+
+	public void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	public File getDurableDirectory() {
+		return durableDirectory;
+	}
+
+	public void setDurableDirectory(File durableDirectory) {
+		this.durableDirectory = durableDirectory;
+	}
+
+	public long getDurableSegmentBytes() {
+		return durableSegmentBytes;
+	}
+
+	public void setDurableSegmentBytes(long durableSegmentBytes) {
+		this.durableSegmentBytes = durableSegmentBytes;
+	}
+
+	public long getDurableRetentionBytes() {
+		return durableRetentionBytes;
+	}
+
+	public void setDurableRetentionBytes(long durableRetentionBytes) {
+		this.durableRetentionBytes = durableRetentionBytes;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public long getBufferMemoryBytes() {
+		return bufferMemoryBytes;
+	}
+
+	public void setBufferMemoryBytes(long bufferMemoryBytes) {
+		this.bufferMemoryBytes = bufferMemoryBytes;
+	}
+
+	public long getMaxBodyBytes() {
+		return maxBodyBytes;
+	}
+
+	public void setMaxBodyBytes(long maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	public long getRouteIdleSeconds() {
+		return routeIdleSeconds;
+	}
+
+	public void setRouteIdleSeconds(long routeIdleSeconds) {
+		this.routeIdleSeconds = routeIdleSeconds;
+	}
+
+	public int getMaxRoutes() {
+		return maxRoutes;
+	}
+
+	public void setMaxRoutes(int maxRoutes) {
+		this.maxRoutes = maxRoutes;
+	}
+
+	public Map<String, ServletBindingProperties> getBindings() {
+		return bindings;
+	}
+
 	@Bean
 	public MessageController messageController(EnabledBindings bindings,
-			@Autowired(required = false) List<RouteRegistry> registries) {
+			@Autowired(required = false) List<RouteRegistry> registries,
+			@Autowired(required = false) @Qualifier(EXECUTOR_BEAN_NAME) Executor executor,
+			@Autowired(required = false) ObjectMapper objectMapper,
+			@Autowired(required = false) Codec codec) {
 		MessageController controller = new MessageController(prefix, bindings);
 		controller.setBufferTimeoutSeconds(bufferTimeoutSeconds);
+		controller.setBufferCapacity(bufferCapacity);
+		controller.setBufferOverflow(bufferOverflow);
 		controller.setReceiveTimeoutSeconds(receiveTimeoutMillis);
+		controller.setConcurrency(concurrency);
+		controller.setSseQueueCapacity(sseQueueCapacity);
+		controller.setSseOverflow(sseOverflow);
+		controller.setSseFlushMillis(sseFlushMillis);
+		controller.setSseFlushCount(sseFlushCount);
+		controller.setSseHeartbeatSeconds(sseHeartbeatSeconds);
+		controller.setSseIdleTimeoutSeconds(sseIdleTimeoutSeconds);
+		controller.setSseWriteTimeoutMillis(sseWriteTimeoutMillis);
+		controller.setSseWriterThreads(sseWriterThreads);
+		controller.setMaxWaitMillis(maxWaitMillis);
+		controller.setDurable(durable);
+		if (durableDirectory != null) {
+			controller.setDurableDirectory(durableDirectory);
+		}
+		controller.setDurableSegmentBytes(durableSegmentBytes);
+		controller.setDurableRetentionBytes(durableRetentionBytes);
+		controller.setSpillThreshold(spillThreshold);
+		controller.setBufferMemoryBytes(bufferMemoryBytes);
+		controller.setMaxBodyBytes(maxBodyBytes);
+		controller.setRouteIdleSeconds(routeIdleSeconds);
+		controller.setMaxRoutes(maxRoutes);
+		controller.setBindingProperties(this.bindings);
+		if (executor != null) {
+			controller.setExecutor(executor);
+		}
+		if (objectMapper != null) {
+			controller.setObjectMapper(objectMapper);
+		}
+		if (codec != null) {
+			controller.setCodec(codec);
+		}
 		if (registries != null) {
 			for (RouteRegistry registry : registries) {
 				controller.registerRoutes(registry.routes());
@@ -100,4 +476,19 @@ public class MessageHandlingAutoConfiguration {
 			BindingServiceProperties binding) {
 		return new BeanFactoryEnabledBindings(beanFactory, binding);
 	}
+
+	@Configuration
+	@ConditionalOnClass(PublicMetrics.class)
+	protected static class MetricsConfiguration {
+
+		@Bean
+		public PublicMetrics servletBinderMetrics(MessageController controller) {
+			return () -> Arrays.asList(
+					new Metric<>("servlet.binder.buffer.bytes",
+							controller.getBufferedBytes()),
+					new Metric<>("servlet.binder.buffer.limit",
+							controller.getBufferMemoryBytes()));
+		}
+
+	}
 }
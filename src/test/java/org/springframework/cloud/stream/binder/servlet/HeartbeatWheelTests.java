@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.http.MediaType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HeartbeatWheelTests {
+
+	private static final long MINUTE = 60000L;
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final List<String> frames = new ArrayList<>();
+
+	private final RouteBuffer buffer = new RouteBuffer(100, BufferOverflow.OVERWRITE, 0);
+
+	@After
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void heartbeat() {
+		HeartbeatWheel wheel = new HeartbeatWheel(scheduler, MINUTE, 0, 1);
+		SseClient client = client();
+		wheel.add(client);
+		wheel.tick(System.currentTimeMillis() + MINUTE);
+		assertThat(frames).containsExactly(":\n\n");
+		assertThat(client.isClosed()).isFalse();
+		wheel.stop();
+	}
+
+	@Test
+	public void noHeartbeatWhenBusy() {
+		HeartbeatWheel wheel = new HeartbeatWheel(scheduler, MINUTE, 0, 1);
+		SseClient client = client();
+		wheel.add(client);
+		client.offer(buffer.add(MessageBuilder.withPayload("foo").build()));
+		wheel.tick();
+		assertThat(frames).containsExactly("id:0\ndata:foo\n\n");
+		wheel.stop();
+	}
+
+	@Test
+	public void idle() {
+		HeartbeatWheel wheel = new HeartbeatWheel(scheduler, MINUTE, MINUTE, 1);
+		SseClient client = client();
+		wheel.add(client);
+		wheel.tick(System.currentTimeMillis() + MINUTE);
+		assertThat(client.isClosed()).isTrue();
+		assertThat(frames).isEmpty();
+		wheel.stop();
+	}
+
+	@Test
+	public void slots() {
+		HeartbeatWheel wheel = new HeartbeatWheel(scheduler, MINUTE, 0, 2);
+		wheel.add(client());
+		wheel.add(client());
+		long now = System.currentTimeMillis() + MINUTE;
+		// One client per slot, and only one slot per tick
+		wheel.tick(now);
+		assertThat(frames).hasSize(1);
+		wheel.tick(now);
+		assertThat(frames).hasSize(2);
+		wheel.stop();
+	}
+
+	private SseClient client() {
+		SseClient client = new SseClient(emitter(), Runnable::run, 10,
+				SseOverflow.DROP_OLDEST, payload -> payload.toString().getBytes());
+		client.start(Collections.emptyList());
+		return client;
+	}
+
+	private ResponseBodyEmitter emitter() {
+		return new ResponseBodyEmitter() {
+			@Override
+			public void send(Object data, MediaType type) throws IOException {
+				frames.add(new String((byte[]) data));
+			}
+		};
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class JsonArrayReaderTests {
+
+	@Test
+	public void elements() throws Exception {
+		assertThat(read(" [\"foo\", {\"bar\":[1,\"]\"]}, [2], 123 ,true]"))
+				.containsExactly("foo", "{\"bar\":[1,\"]\"]}", "[2]", "123", "true");
+	}
+
+	@Test
+	public void escapes() throws Exception {
+		assertThat(read("[\"say \\\"hi\\\"\",\"\\\\\",{\"a\":\"}\\\"\"}]"))
+				.containsExactly("say \\\"hi\\\"", "\\\\", "{\"a\":\"}\\\"\"}");
+	}
+
+	@Test
+	public void empty() throws Exception {
+		assertThat(read("[ ]")).isEmpty();
+	}
+
+	@Test
+	public void notArray() throws Exception {
+		JsonArrayReader reader = new JsonArrayReader(
+				new StringReader(" {\"value\":\"foo\"} "));
+		assertThat(reader.isArray()).isFalse();
+		assertThat(reader.hasNext()).isFalse();
+		assertThat(reader.remainder()).isEqualTo("{\"value\":\"foo\"}");
+	}
+
+	@Test
+	public void incremental() throws Exception {
+		// The second chunk of input is not available yet, but the first element is
+		Reader input = new Reader() {
+			private boolean first = true;
+
+			@Override
+			public int read(char[] buffer, int offset, int length) throws IOException {
+				if (!first) {
+					throw new IOException("Not yet");
+				}
+				first = false;
+				String chunk = "[\"foo\",";
+				chunk.getChars(0, chunk.length(), buffer, offset);
+				return chunk.length();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		JsonArrayReader reader = new JsonArrayReader(input);
+		assertThat(reader.isArray()).isTrue();
+		assertThat(reader.next()).isEqualTo("foo");
+		assertThatThrownBy(reader::hasNext).isInstanceOf(UncheckedIOException.class);
+	}
+
+	private List<String> read(String json) throws IOException {
+		JsonArrayReader reader = new JsonArrayReader(new StringReader(json));
+		assertThat(reader.isArray()).isTrue();
+		List<String> result = new ArrayList<>();
+		reader.forEachRemaining(result::add);
+		return result;
+	}
+
+}
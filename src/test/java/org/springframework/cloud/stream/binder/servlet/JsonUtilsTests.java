@@ -57,6 +57,18 @@ public class JsonUtilsTests {
 						.contains("[{\"value\":\"foo\"},{\"value\":\"bar\"}]");
 	}
 
+	@Test
+	public void lineString() throws Exception {
+		assertThat(JsonUtils.line("say \"hello\"\n"))
+				.isEqualTo("\"say \\\"hello\\\"\\u000a\"");
+	}
+
+	@Test
+	public void lineObject() throws Exception {
+		assertThat(JsonUtils.line("{\n  \"value\":\"foo\"\n}"))
+				.isEqualTo("{   \"value\":\"foo\" }");
+	}
+
 	protected static class Foo {
 		private String value;
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class MemoryBudgetTests {
+
+	private static final long SIZE = MemoryBudget.OVERHEAD + 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void charged() {
+		MemoryBudget budget = new MemoryBudget(100 * SIZE, payload -> new byte[0]);
+		RouteBuffer buffer = buffer(budget, 2);
+		buffer.send(message("foo0"));
+		assertThat(budget.getUsed()).isEqualTo(SIZE);
+		buffer.send(message("foo1"));
+		buffer.send(message("foo2"));
+		// The first one was overwritten
+		assertThat(budget.getUsed()).isEqualTo(2 * SIZE);
+		assertThat(buffer.getBytes()).isEqualTo(2 * SIZE);
+		buffer.drain();
+		assertThat(budget.getUsed()).isEqualTo(0);
+	}
+
+	@Test
+	public void json() {
+		MemoryBudget budget = new MemoryBudget(100 * SIZE, payload -> new byte[10]);
+		RouteBuffer buffer = buffer(budget, 2);
+		buffer.send(MessageBuilder.withPayload(1L).build());
+		assertThat(budget.getUsed()).isEqualTo(MemoryBudget.OVERHEAD + 10);
+	}
+
+	@Test
+	public void leastValuable() {
+		MemoryBudget budget = new MemoryBudget(10 * SIZE, payload -> new byte[0]);
+		RouteBuffer popular = buffer(budget, 100);
+		RouteBuffer unpopular = buffer(budget, 100);
+		for (int i = 0; i < 5; i++) {
+			popular.send(message("foo" + i));
+			popular.receive();
+			unpopular.send(message("bar" + i));
+		}
+		assertThat(budget.getUsed()).isEqualTo(10 * SIZE);
+		popular.send(message("foo5"));
+		// Reclaimed down to 90% of the limit from the route that is never read
+		assertThat(budget.getUsed()).isLessThanOrEqualTo(9 * SIZE);
+		assertThat(payloads(popular.receive())).hasSize(6);
+		assertThat(payloads(unpopular.receive())).containsExactly("bar2", "bar3",
+				"bar4");
+	}
+
+	@Test
+	public void aged() {
+		MemoryBudget budget = new MemoryBudget(10 * SIZE, payload -> new byte[0]);
+		RouteBuffer buffer = buffer(budget, 100);
+		for (int i = 0; i < 4; i++) {
+			buffer.receive();
+		}
+		assertThat(buffer.getReads()).isEqualTo(4);
+		budget.reclaim();
+		// Nothing to reclaim, so not aged
+		assertThat(buffer.getReads()).isEqualTo(4);
+		for (int i = 0; i < 11; i++) {
+			buffer.send(message("foo" + (i % 10)));
+		}
+		assertThat(buffer.getReads()).isEqualTo(2);
+	}
+
+	@Test
+	public void log() throws Exception {
+		MemoryBudget budget = new MemoryBudget(4 * SIZE, payload -> new byte[0]);
+		RouteBuffer buffer = buffer(budget, 100);
+		buffer.attach(new SegmentLog("foo/output", folder.getRoot(), 1024 * 1024,
+				Long.MAX_VALUE, new ObjectMapper()));
+		for (int i = 0; i < 6; i++) {
+			buffer.send(message("foo" + i));
+		}
+		assertThat(budget.getUsed()).isLessThanOrEqualTo(4 * SIZE);
+		// The evicted messages are still in the log
+		assertThat(payloads(buffer.receive())).containsExactly("foo0", "foo1", "foo2",
+				"foo3", "foo4", "foo5");
+		buffer.close();
+		assertThat(budget.getUsed()).isEqualTo(0);
+	}
+
+	@Test
+	public void spill() throws Exception {
+		MemoryBudget budget = new MemoryBudget(4 * SIZE, payload -> new byte[0]);
+		RouteBuffer buffer = buffer(budget, 100);
+		SegmentLog log = SegmentLog.temporary("foo/output", 0, 1024 * 1024,
+				new ObjectMapper(), null);
+		buffer.attach(log, 100);
+		for (int i = 0; i < 6; i++) {
+			buffer.send(message("foo" + i));
+		}
+		assertThat(budget.getUsed()).isLessThanOrEqualTo(4 * SIZE);
+		// The evicted messages were written to the file on the way out
+		assertThat(log.getNext()).isGreaterThan(0);
+		assertThat(payloads(buffer.receive())).containsExactly("foo0", "foo1", "foo2",
+				"foo3", "foo4", "foo5");
+		buffer.close();
+	}
+
+	private RouteBuffer buffer(MemoryBudget budget, int capacity) {
+		RouteBuffer buffer = new RouteBuffer("foo/output", capacity,
+				BufferOverflow.OVERWRITE, 0);
+		buffer.setBudget(budget);
+		return buffer;
+	}
+
+	private Message<?> message(String payload) {
+		return MessageBuilder.withPayload(payload).build();
+	}
+
+	private List<Object> payloads(List<Message<?>> messages) {
+		return messages.stream().map(Message::getPayload).collect(Collectors.toList());
+	}
+
+}
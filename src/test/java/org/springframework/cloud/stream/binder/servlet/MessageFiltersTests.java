@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import org.springframework.expression.ParseException;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class MessageFiltersTests {
+
+	private final MessageFilters filters = new MessageFilters();
+
+	private final Message<String> message = MessageBuilder.withPayload("hello")
+			.setHeader("type", "greeting").build();
+
+	@Test
+	public void none() {
+		assertThat(filters.get(null)).isNull();
+		assertThat(filters.get(" ")).isNull();
+	}
+
+	@Test
+	public void headers() {
+		assertThat(filters.get("headers.type=='greeting'").test(message)).isTrue();
+		assertThat(filters.get("headers['type']=='order'").test(message)).isFalse();
+	}
+
+	@Test
+	public void payload() {
+		assertThat(filters.get("payload.startsWith('he')").test(message)).isTrue();
+		assertThat(filters.get("payload.length() > 10").test(message)).isFalse();
+	}
+
+	@Test
+	public void missing() {
+		assertThat(filters.get("headers.foo.bar=='spam'").test(message)).isFalse();
+		assertThat(filters.get("payload").test(message)).isFalse();
+	}
+
+	@Test
+	public void cached() {
+		assertThat(filters.get("headers.type=='greeting'"))
+				.isSameAs(filters.get("headers.type=='greeting'"));
+	}
+
+	@Test
+	public void invalid() {
+		assertThatThrownBy(() -> filters.get("headers.type=="))
+				.isInstanceOf(ParseException.class);
+	}
+
+	@Test
+	public void unsafe() {
+		assertThat(filters.get("T(java.lang.Runtime).getRuntime()!=null").test(message))
+				.isFalse();
+		assertThat(filters.get("new java.lang.ProcessBuilder('ls')!=null").test(message))
+				.isFalse();
+		assertThat(filters.get("payload.class.name!=null").test(message)).isFalse();
+		assertThat(filters.get("payload.getClass().getName()!=null").test(message))
+				.isFalse();
+	}
+
+	@Test
+	public void sideEffects() {
+		Counter counter = new Counter();
+		Message<Counter> message = MessageBuilder.withPayload(counter).build();
+		assertThat(filters.get("payload.increment()").test(message)).isFalse();
+		assertThat(filters.get("payload.count==0").test(message)).isFalse();
+		assertThat(counter.getCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void readOnly() {
+		Map<String, Object> map = new HashMap<>();
+		map.put("foo", "bar");
+		Message<Map<String, Object>> message = MessageBuilder.withPayload(map).build();
+		assertThat(filters.get("payload.foo=='bar'").test(message)).isTrue();
+		assertThat(filters.get("payload.containsKey('foo')").test(message)).isTrue();
+		assertThat(filters.get("payload.clear()==null").test(message)).isFalse();
+		assertThatThrownBy(() -> filters.get("(payload['foo']='spam')=='spam'"))
+				.isInstanceOf(ParseException.class);
+		assertThatThrownBy(() -> filters.get("(payload.foo='spam')=='spam'"))
+				.isInstanceOf(ParseException.class);
+		assertThat(map).containsEntry("foo", "bar").hasSize(1);
+	}
+
+	@Test
+	public void mutableNumber() {
+		AtomicLong value = new AtomicLong();
+		Message<AtomicLong> message = MessageBuilder.withPayload(value).build();
+		assertThat(filters.get("payload.incrementAndGet()>0").test(message)).isFalse();
+		assertThat(value.get()).isEqualTo(0);
+	}
+
+	public static class Counter {
+
+		private int count;
+
+		public int getCount() {
+			return count;
+		}
+
+		public boolean increment() {
+			return ++count > 0;
+		}
+
+	}
+
+}
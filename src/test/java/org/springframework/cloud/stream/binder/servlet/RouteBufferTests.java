@@ -0,0 +1,429 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RouteBufferTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void empty() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		assertThat(buffer.receive()).isEmpty();
+	}
+
+	@Test
+	public void overwrite() {
+		RouteBuffer buffer = new RouteBuffer(2, BufferOverflow.OVERWRITE, 0);
+		assertThat(buffer.send(message("foo"))).isTrue();
+		assertThat(buffer.send(message("bar"))).isTrue();
+		assertThat(buffer.send(message("spam"))).isTrue();
+		assertThat(payloads(buffer.receive())).containsExactly("bar", "spam");
+	}
+
+	@Test
+	public void reject() {
+		RouteBuffer buffer = new RouteBuffer(2, BufferOverflow.REJECT, 0);
+		assertThat(buffer.send(message("foo"))).isTrue();
+		assertThat(buffer.send(message("bar"))).isTrue();
+		assertThat(buffer.send(message("spam"))).isFalse();
+		assertThat(payloads(buffer.receive())).containsExactly("foo", "bar");
+	}
+
+	@Test
+	public void drain() {
+		RouteBuffer buffer = new RouteBuffer(2, BufferOverflow.REJECT, 0);
+		buffer.send(message("foo"));
+		buffer.send(message("bar"));
+		assertThat(payloads(buffer.drain())).containsExactly("foo", "bar");
+		assertThat(buffer.receive()).isEmpty();
+		assertThat(buffer.send(message("spam"))).isTrue();
+		assertThat(payloads(buffer.receive())).containsExactly("spam");
+	}
+
+	@Test
+	public void cursor() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo"));
+		buffer.send(message("bar"));
+		buffer.send(message("spam"));
+		RouteBuffer.Slice slice = buffer.receive(0, 0, 0);
+		assertThat(payloads(slice.getMessages())).containsExactly("bar", "spam");
+		assertThat(slice.getSequence()).isEqualTo(2);
+		slice = buffer.receive(slice.getSequence(), 0, 0);
+		assertThat(slice.getMessages()).isEmpty();
+		assertThat(slice.getSequence()).isEqualTo(2);
+	}
+
+	@Test
+	public void limit() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo"));
+		buffer.send(message("bar"));
+		buffer.send(message("spam"));
+		RouteBuffer.Slice slice = buffer.receive(-1, 2, 0);
+		assertThat(payloads(slice.getMessages())).containsExactly("foo", "bar");
+		assertThat(slice.getSequence()).isEqualTo(1);
+	}
+
+	@Test
+	public void last() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo"));
+		buffer.send(message("bar"));
+		buffer.send(message("spam"));
+		RouteBuffer.Slice slice = buffer.receive(-1, 0, 1);
+		assertThat(payloads(slice.getMessages())).containsExactly("spam");
+		assertThat(slice.getSequence()).isEqualTo(2);
+	}
+
+	@Test
+	public void expired() throws Exception {
+		RouteBuffer buffer = new RouteBuffer(2, BufferOverflow.REJECT, 50);
+		buffer.send(message("foo"));
+		buffer.send(message("bar"));
+		Thread.sleep(100L);
+		assertThat(buffer.receive()).isEmpty();
+		assertThat(buffer.send(message("spam"))).isTrue();
+		assertThat(payloads(buffer.receive())).containsExactly("spam");
+	}
+
+	@Test
+	public void concurrent() throws Exception {
+		RouteBuffer buffer = new RouteBuffer(100, BufferOverflow.OVERWRITE, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch latch = new CountDownLatch(4);
+		for (int i = 0; i < 4; i++) {
+			executor.execute(() -> {
+				for (int j = 0; j < 1000; j++) {
+					buffer.send(message("foo"));
+				}
+				latch.countDown();
+			});
+		}
+		assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+		executor.shutdown();
+		assertThat(buffer.receive()).hasSize(100);
+	}
+
+	@Test
+	public void encodedOnce() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo"));
+		AtomicInteger count = new AtomicInteger();
+		Function<Object, byte[]> encoder = payload -> {
+			count.incrementAndGet();
+			return payload.toString().getBytes();
+		};
+		for (int i = 0; i < 3; i++) {
+			RouteBuffer.Entry entry = buffer.receive(-1, 0, 0).getEntries().get(0);
+			assertThat(entry.getJson(encoder)).isEqualTo("foo".getBytes());
+		}
+		assertThat(count.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void indexed() {
+		RouteBuffer buffer = new RouteBuffer("foo", 4, BufferOverflow.OVERWRITE, 0,
+				Collections.singleton("tenant"));
+		buffer.send(message("foo", "acme"));
+		buffer.send(message("bar", "other"));
+		buffer.send(message("spam", "acme"));
+		RouteBuffer.Slice slice = buffer.receive(-1, 0, 0,
+				Collections.singletonMap("tenant", "acme"), null);
+		assertThat(payloads(slice.getMessages())).containsExactly("foo", "spam");
+		assertThat(slice.getSequence()).isEqualTo(2);
+		slice = buffer.receive(-1, 1, 0, Collections.singletonMap("tenant", "acme"),
+				message -> message.getPayload().equals("spam"));
+		assertThat(payloads(slice.getMessages())).containsExactly("spam");
+		// Overwriting evicts from the index
+		buffer.send(message("eggs", "other"));
+		buffer.send(message("ham", "other"));
+		slice = buffer.receive(-1, 0, 0, Collections.singletonMap("tenant", "acme"),
+				null);
+		assertThat(payloads(slice.getMessages())).containsExactly("spam");
+		buffer.drain();
+		slice = buffer.receive(-1, 0, 0, Collections.singletonMap("tenant", "acme"),
+				null);
+		assertThat(slice.getMessages()).isEmpty();
+	}
+
+	@Test
+	public void notIndexed() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo", "acme"));
+		buffer.send(message("bar", "other"));
+		RouteBuffer.Slice slice = buffer.receive(-1, 0, 0,
+				Collections.singletonMap("tenant", "other"), null);
+		assertThat(payloads(slice.getMessages())).containsExactly("bar");
+	}
+
+	@Test
+	public void durable() throws Exception {
+		File directory = folder.newFolder();
+		RouteBuffer buffer = new RouteBuffer("foo/output", 2, BufferOverflow.REJECT, 0);
+		buffer.attach(new SegmentLog("foo/output", directory, 1024, 1024 * 1024,
+				new ObjectMapper()));
+		for (int i = 0; i < 5; i++) {
+			assertThat(buffer.send(message("foo" + i))).isTrue();
+		}
+		// The oldest ones come from the log and the rest from the ring
+		assertThat(payloads(buffer.receive())).containsExactly("foo0", "foo1", "foo2",
+				"foo3", "foo4");
+		assertThat(payloads(buffer.receive(0, 2, 0).getMessages()))
+				.containsExactly("foo1", "foo2");
+		assertThat(payloads(buffer.drain(-1, 1, 0).getMessages()))
+				.containsExactly("foo0");
+		buffer.close();
+		// Restart
+		buffer = new RouteBuffer("foo/output", 2, BufferOverflow.REJECT, 0);
+		buffer.attach(new SegmentLog("foo/output", directory, 1024, 1024 * 1024,
+				new ObjectMapper()));
+		assertThat(payloads(buffer.receive())).containsExactly("foo1", "foo2", "foo3",
+				"foo4");
+		assertThat(buffer.add(message("bar")).getSequence()).isEqualTo(5);
+		assertThat(payloads(buffer.receive(3, 0, 0).getMessages()))
+				.containsExactly("foo4", "bar");
+	}
+
+	@Test
+	public void spill() throws Exception {
+		RouteBuffer buffer = new RouteBuffer("foo/output", 2, BufferOverflow.OVERWRITE,
+				0);
+		SegmentLog log = SegmentLog.temporary("foo/output", 0, 256, new ObjectMapper(),
+				null);
+		buffer.attach(log, 4);
+		for (int i = 0; i < 6; i++) {
+			assertThat(buffer.send(message("foo" + i))).isTrue();
+		}
+		// Only the ones that left the ring were written to the file
+		assertThat(log.getNext()).isEqualTo(4);
+		// Only 2 in memory, but 4 altogether
+		assertThat(payloads(buffer.receive())).containsExactly("foo2", "foo3", "foo4",
+				"foo5");
+		assertThat(payloads(buffer.drain(-1, 3, 0).getMessages()))
+				.containsExactly("foo2", "foo3", "foo4");
+		assertThat(payloads(buffer.receive())).containsExactly("foo5");
+		buffer.close();
+	}
+
+	@Test
+	public void spillAndReject() throws Exception {
+		RouteBuffer buffer = new RouteBuffer("foo/output", 2, BufferOverflow.REJECT, 0);
+		buffer.attach(SegmentLog.temporary("foo/output", 0, 256, new ObjectMapper(),
+				null),
+				3);
+		assertThat(buffer.send(message("foo"))).isTrue();
+		assertThat(buffer.send(message("bar"))).isTrue();
+		assertThat(buffer.send(message("spam"))).isTrue();
+		assertThat(buffer.send(message("bucket"))).isFalse();
+		assertThat(payloads(buffer.drain())).containsExactly("foo", "bar", "spam");
+		assertThat(buffer.send(message("bucket"))).isTrue();
+		assertThat(payloads(buffer.receive())).containsExactly("bucket");
+		buffer.close();
+	}
+
+	@Test
+	public void retire() {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.send(message("foo"));
+		// Used since then
+		assertThat(buffer.retire(buffer.getLastUsed() - 1)).isFalse();
+		assertThat(buffer.send(message("bar"))).isTrue();
+		assertThat(buffer.retire(buffer.getLastUsed())).isTrue();
+		assertThat(buffer.isRetired()).isTrue();
+		assertThat(buffer.add(message("spam"))).isNull();
+		assertThat(payloads(buffer.receive())).containsExactly("foo", "bar");
+	}
+
+	@Test
+	public void expires() throws Exception {
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 60000);
+		buffer.send(message("foo"));
+		buffer.send(MessageBuilder.withPayload("bar")
+				.setHeader(MessageController.EXPIRES, System.currentTimeMillis() - 1)
+				.build());
+		buffer.send(message("spam"));
+		assertThat(payloads(buffer.receive())).containsExactly("foo", "spam");
+	}
+
+	@Test
+	public void expiryTimer() throws Exception {
+		MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, payload -> new byte[0]);
+		long now = System.currentTimeMillis();
+		TimingWheel<Runnable> wheel = new TimingWheel<>(1, 4, now, Runnable::run);
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.setBudget(budget);
+		buffer.setExpiry(wheel);
+		buffer.send(MessageBuilder.withPayload("foo")
+				.setHeader(MessageController.EXPIRES, now + 20).build());
+		buffer.send(message("bar"));
+		assertThat(budget.getUsed()).isEqualTo(2 * (MemoryBudget.OVERHEAD + 6));
+		Thread.sleep(30L);
+		wheel.tick(System.currentTimeMillis());
+		// Removed from memory, and the reader skips over it
+		assertThat(budget.getUsed()).isEqualTo(MemoryBudget.OVERHEAD + 6);
+		assertThat(payloads(buffer.receive())).containsExactly("bar");
+	}
+
+	@Test
+	public void closedBeforeExpiry() throws Exception {
+		MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, payload -> new byte[0]);
+		long now = System.currentTimeMillis();
+		TimingWheel<Runnable> wheel = new TimingWheel<>(1, 4, now, Runnable::run);
+		RouteBuffer buffer = new RouteBuffer(4, BufferOverflow.OVERWRITE, 0);
+		buffer.setBudget(budget);
+		buffer.setExpiry(wheel);
+		buffer.send(MessageBuilder.withPayload("foo")
+				.setHeader(MessageController.EXPIRES, now + 20).build());
+		assertThat(budget.getUsed()).isEqualTo(MemoryBudget.OVERHEAD + 6);
+		buffer.close();
+		assertThat(budget.getUsed()).isEqualTo(0);
+		Thread.sleep(30L);
+		wheel.tick(System.currentTimeMillis());
+		// Not released twice
+		assertThat(budget.getUsed()).isEqualTo(0);
+		assertThat(buffer.getBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void compacted() {
+		RouteBuffer buffer = new RouteBuffer(3, BufferOverflow.OVERWRITE, 0);
+		buffer.setCompaction(message -> message.getHeaders().get("tenant"));
+		buffer.send(message("foo", "acme"));
+		buffer.send(message("bar", "other"));
+		buffer.send(message("spam", "acme"));
+		// The latest for each key, in the order they were added
+		assertThat(payloads(buffer.receive())).containsExactly("bar", "spam");
+		RouteBuffer.Slice slice = buffer.receive(1, 0, 0);
+		assertThat(payloads(slice.getMessages())).containsExactly("spam");
+		assertThat(slice.getSequence()).isEqualTo(2);
+		assertThat(payloads(buffer.receive(-1, 0, 1).getMessages()))
+				.containsExactly("spam");
+		assertThat(payloads(buffer.receive(-1, 0, 0,
+				Collections.singletonMap("tenant", "other"), null).getMessages()))
+						.containsExactly("bar");
+		// Messages without a key are all kept
+		buffer.send(message("eggs"));
+		buffer.send(message("ham"));
+		// The capacity is the number of messages kept, so the oldest was evicted
+		assertThat(payloads(buffer.receive())).containsExactly("spam", "eggs", "ham");
+		assertThat(payloads(buffer.drain(-1, 1, 0).getMessages()))
+				.containsExactly("spam");
+		assertThat(payloads(buffer.receive())).containsExactly("eggs", "ham");
+	}
+
+	@Test
+	public void compactedAndReject() {
+		MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, payload -> new byte[0]);
+		RouteBuffer buffer = new RouteBuffer(2, BufferOverflow.REJECT, 0);
+		buffer.setBudget(budget);
+		buffer.setCompaction(message -> message.getHeaders().get("tenant"));
+		assertThat(buffer.send(message("foo", "acme"))).isTrue();
+		assertThat(buffer.send(message("bar", "other"))).isTrue();
+		// A new value for an existing key replaces the old one
+		assertThat(buffer.send(message("spam", "acme"))).isTrue();
+		assertThat(budget.getUsed()).isEqualTo(2 * (MemoryBudget.OVERHEAD + 6) + 2);
+		// But there is no room for a new key
+		assertThat(buffer.send(message("eggs", "new"))).isFalse();
+		assertThat(payloads(buffer.receive())).containsExactly("bar", "spam");
+		buffer.reset();
+		assertThat(budget.getUsed()).isEqualTo(0);
+		assertThat(buffer.send(message("eggs", "new"))).isTrue();
+	}
+
+	@Test
+	public void compactedConcurrently() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 20; i++) {
+				// Room for one value for each key, and no more
+				RouteBuffer buffer = new RouteBuffer(101, BufferOverflow.REJECT, 0);
+				buffer.setCompaction(message -> message.getHeaders().get("tenant"));
+				buffer.send(message("foo", "acme"));
+				AtomicBoolean done = new AtomicBoolean();
+				CountDownLatch stopped = new CountDownLatch(2);
+				for (int j = 0; j < 2; j++) {
+					executor.execute(() -> {
+						while (!done.get()) {
+							buffer.send(message("bar", "acme"));
+						}
+						stopped.countDown();
+					});
+				}
+				try {
+					for (int j = 0; j < 100; j++) {
+						// A replaced value never takes up room, so there is always space
+						assertThat(buffer.send(message("spam", "tenant" + j))).isTrue();
+					}
+					for (int j = 0; j < 100; j++) {
+						// And a read never sees two values for the same key
+						assertThat(buffer.receive()).hasSize(101);
+					}
+				}
+				finally {
+					done.set(true);
+				}
+				assertThat(stopped.await(10, TimeUnit.SECONDS)).isTrue();
+				assertThat(buffer.receive()).hasSize(101);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Message<?> message(String payload, String tenant) {
+		return MessageBuilder.withPayload(payload).setHeader("tenant", tenant).build();
+	}
+
+	private Message<?> message(String payload) {
+		return MessageBuilder.withPayload(payload).build();
+	}
+
+	private List<Object> payloads(List<Message<?>> messages) {
+		return messages.stream().map(Message::getPayload).collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RouteTrieTests {
+
+	private final RouteTrie<String> trie = new RouteTrie<>();
+
+	@Test
+	public void exact() {
+		trie.add("orders/eu", "a");
+		assertThat(match("orders/eu")).containsExactly("a");
+		assertThat(match("orders/us")).isEmpty();
+		assertThat(match("orders/eu/1")).isEmpty();
+	}
+
+	@Test
+	public void single() {
+		trie.add("orders/*/1", "a");
+		trie.add("orders/eu/*", "b");
+		assertThat(match("orders/eu/1")).containsExactlyInAnyOrder("a", "b");
+		assertThat(match("orders/us/1")).containsExactly("a");
+		assertThat(match("orders/eu")).isEmpty();
+	}
+
+	@Test
+	public void rest() {
+		trie.add("orders/**", "a");
+		trie.add("**", "b");
+		assertThat(match("orders")).containsExactlyInAnyOrder("a", "b");
+		assertThat(match("orders/eu/1")).containsExactlyInAnyOrder("a", "b");
+		assertThat(match("customers")).containsExactly("b");
+		assertThat(match(null)).containsExactly("b");
+	}
+
+	@Test
+	public void restInTheMiddle() {
+		assertThatThrownBy(() -> trie.add("orders/**/1", "a"))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void remove() {
+		trie.add("orders/eu/*", "a");
+		trie.add("orders/**", "b");
+		trie.remove("orders/eu/*", "a");
+		assertThat(match("orders/eu/1")).containsExactly("b");
+		trie.remove("orders/**", "b");
+		assertThat(trie.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void patterns() {
+		assertThat(RouteTrie.isPattern("orders/*")).isTrue();
+		assertThat(RouteTrie.isPattern("orders/**")).isTrue();
+		assertThat(RouteTrie.isPattern("orders/eu")).isFalse();
+		assertThat(RouteTrie.isPattern(null)).isFalse();
+		assertThat(RouteTrie.matches("orders/*", "orders/eu")).isTrue();
+		assertThat(RouteTrie.matches("orders/*", "customers/eu")).isFalse();
+	}
+
+	private List<String> match(String key) {
+		List<String> result = new ArrayList<>();
+		trie.match(key, result::add);
+		return result;
+	}
+
+}
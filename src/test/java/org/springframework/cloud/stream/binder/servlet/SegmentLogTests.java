@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.springframework.integration.codec.kryo.PojoCodec;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class SegmentLogTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void appendAndRead() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		log.append(entry(0, MessageBuilder.withPayload("foo").setHeader("tenant", "acme")
+				.build()));
+		log.append(entry(1, MessageBuilder.withPayload(new byte[] { 1, 2 }).build()));
+		log.append(entry(2,
+				MessageBuilder.withPayload(Collections.singletonMap("bar", "spam"))
+						.build()));
+		List<RouteBuffer.Entry> entries = read(log, 0);
+		assertThat(entries).hasSize(3);
+		assertThat(entries.get(0).getMessage().getPayload()).isEqualTo("foo");
+		assertThat(entries.get(0).getMessage().getHeaders().get("tenant"))
+				.isEqualTo("acme");
+		assertThat(entries.get(0).getRoute()).isEqualTo("foo/output");
+		assertThat(entries.get(1).getMessage().getPayload())
+				.isEqualTo(new byte[] { 1, 2 });
+		assertThat(entries.get(2).getMessage().getPayload())
+				.isEqualTo(Collections.singletonMap("bar", "spam"));
+		assertThat(entries.get(2).getSequence()).isEqualTo(2);
+		assertThat(read(log, 2)).hasSize(1);
+	}
+
+	@Test
+	public void stop() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		for (int i = 0; i < 5; i++) {
+			log.append(entry(i, MessageBuilder.withPayload("foo" + i).build()));
+		}
+		List<RouteBuffer.Entry> entries = new ArrayList<>();
+		long next = log.read(1, 5, entry -> entries.size() < 2 && entries.add(entry));
+		assertThat(next).isEqualTo(3);
+		assertThat(entries).hasSize(2);
+		assertThat(entries.get(0).getMessage().getPayload()).isEqualTo("foo1");
+	}
+
+	@Test
+	public void recover() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		log.append(entry(0, MessageBuilder.withPayload("foo").build()));
+		log.append(entry(1, MessageBuilder.withPayload("bar").build()));
+		log.close();
+		log = log(1024 * 1024);
+		assertThat(log.getStart()).isEqualTo(0);
+		assertThat(log.getNext()).isEqualTo(2);
+		assertThat(read(log, 0)).hasSize(2);
+		log.append(entry(2, MessageBuilder.withPayload("spam").build()));
+		assertThat(read(log, 0)).hasSize(3);
+	}
+
+	@Test
+	public void torn() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		log.append(entry(0, MessageBuilder.withPayload("foo").build()));
+		log.append(entry(1, MessageBuilder.withPayload("bar").build()));
+		log.close();
+		File segment = new File(folder.getRoot(), String.format("%020d.log", 0));
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			// The second record was not completely written (the checksum does not match)
+			file.seek(60);
+			file.write('x');
+		}
+		log = log(1024 * 1024);
+		assertThat(log.getNext()).isEqualTo(1);
+		assertThat(read(log, 0)).hasSize(1);
+	}
+
+	@Test
+	public void retention() throws Exception {
+		SegmentLog log = new SegmentLog("foo/output", folder.getRoot(), 256, 1024,
+				mapper);
+		for (int i = 0; i < 100; i++) {
+			log.append(entry(i, MessageBuilder.withPayload("foo" + i).build()));
+		}
+		assertThat(log.getStart()).isGreaterThan(0);
+		assertThat(folder.getRoot().listFiles((dir, name) -> name.endsWith(".log")))
+				.hasSize(4);
+		List<RouteBuffer.Entry> entries = read(log, 0);
+		assertThat(entries.get(0).getSequence()).isEqualTo(log.getStart());
+		assertThat(entries.get(entries.size() - 1).getSequence()).isEqualTo(99);
+	}
+
+	@Test
+	public void purge() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			log.append(entry(i, MessageBuilder.withPayload("foo" + i).build()));
+		}
+		log.purge(2);
+		assertThat(read(log, 0)).hasSize(1);
+		log.close();
+		log = log(1024 * 1024);
+		assertThat(log.getStart()).isEqualTo(2);
+		assertThat(read(log, 0)).hasSize(1);
+	}
+
+	@Test
+	public void damagedHead() throws Exception {
+		SegmentLog log = log(1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			log.append(entry(i, MessageBuilder.withPayload("foo" + i).build()));
+		}
+		log.purge(2);
+		log.close();
+		// As if it crashed while the head was being written
+		Files.write(new File(log.getDirectory(), "head").toPath(), new byte[0]);
+		log = log(1024 * 1024);
+		assertThat(log.getStart()).isEqualTo(0);
+		assertThat(read(log, 0)).hasSize(3);
+	}
+
+	@Test
+	public void temporary() throws Exception {
+		SegmentLog log = SegmentLog.temporary("foo/output", 5, 256, mapper, null);
+		assertThat(log.getStart()).isEqualTo(5);
+		for (int i = 5; i < 50; i++) {
+			log.append(entry(i, MessageBuilder.withPayload("foo" + i).build()));
+		}
+		log.trim(40);
+		List<RouteBuffer.Entry> entries = read(log, 0);
+		assertThat(entries.get(0).getSequence()).isGreaterThan(5).isLessThanOrEqualTo(40);
+		assertThat(entries.get(entries.size() - 1).getSequence()).isEqualTo(49);
+		File directory = log.getDirectory();
+		assertThat(directory.listFiles()).isNotEmpty();
+		log.close();
+		assertThat(directory).doesNotExist();
+	}
+
+	@Test
+	public void codec() throws Exception {
+		SegmentLog log = new SegmentLog("foo/output", folder.getRoot(), 1024 * 1024,
+				Long.MAX_VALUE, mapper, new PojoCodec());
+		log.append(entry(0, MessageBuilder.withPayload(new Foo("bar")).build()));
+		log.close();
+		log = new SegmentLog("foo/output", folder.getRoot(), 1024 * 1024,
+				Long.MAX_VALUE, mapper, new PojoCodec());
+		// The same type as was sent (not a map)
+		assertThat(read(log, 0).get(0).getMessage().getPayload())
+				.isEqualTo(new Foo("bar"));
+	}
+
+	private List<RouteBuffer.Entry> read(SegmentLog log, long from) {
+		List<RouteBuffer.Entry> entries = new ArrayList<>();
+		log.read(from, Long.MAX_VALUE, entries::add);
+		return entries;
+	}
+
+	private SegmentLog log(long segmentBytes) throws Exception {
+		return new SegmentLog("foo/output", folder.getRoot(), segmentBytes,
+				Long.MAX_VALUE, mapper);
+	}
+
+	private RouteBuffer.Entry entry(long sequence, Message<?> message) {
+		return new RouteBuffer.Entry("foo/output", sequence, message,
+				System.currentTimeMillis());
+	}
+
+	public static class Foo {
+
+		private String name;
+
+		public Foo() {
+		}
+
+		public Foo(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Foo && ((Foo) obj).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.springframework.http.MediaType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class SseClientTests {
+
+	private final List<Runnable> tasks = new ArrayList<>();
+
+	private final List<String> sent = new ArrayList<>();
+
+	private final List<String> frames = new ArrayList<>();
+
+	private final RouteBuffer buffer = new RouteBuffer(100, BufferOverflow.OVERWRITE, 0);
+
+	@Test
+	public void backlog() {
+		SseClient client = client(10, SseOverflow.DROP_OLDEST);
+		RouteBuffer.Entry foo = entry("foo");
+		RouteBuffer.Entry bar = entry("bar");
+		// Offered after connecting but also in the backlog
+		client.offer(bar);
+		client.start(Arrays.asList(foo, bar));
+		client.offer(entry("spam"));
+		run();
+		assertThat(sent).containsExactly("foo", "bar", "spam");
+	}
+
+	@Test
+	public void dropOldest() {
+		assertThat(overflow(SseOverflow.DROP_OLDEST)).containsExactly("bar", "spam");
+	}
+
+	@Test
+	public void dropNewest() {
+		assertThat(overflow(SseOverflow.DROP_NEWEST)).containsExactly("foo", "bar");
+	}
+
+	@Test
+	public void conflate() {
+		assertThat(overflow(SseOverflow.CONFLATE)).containsExactly("spam");
+	}
+
+	@Test
+	public void disconnect() {
+		SseClient client = client(2, SseOverflow.DISCONNECT);
+		boolean[] closed = new boolean[1];
+		client.onClose(() -> closed[0] = true);
+		assertThat(overflow(client)).isEmpty();
+		assertThat(client.isClosed()).isTrue();
+		assertThat(closed[0]).isTrue();
+	}
+
+	@Test
+	public void coalesced() {
+		SseClient client = client(10, SseOverflow.DROP_OLDEST);
+		client.start(Collections.emptyList());
+		client.offer(entry("foo"));
+		client.offer(entry("bar\nspam"));
+		run();
+		assertThat(frames).containsExactly(
+				"id:0\ndata:foo\n\nid:1\ndata:bar\ndata:spam\n\n");
+	}
+
+	@Test
+	public void multiplexed() {
+		RouteBuffer foo = new RouteBuffer("foo/output", 10, BufferOverflow.OVERWRITE, 0);
+		RouteBuffer bar = new RouteBuffer("bar/output", 10, BufferOverflow.OVERWRITE, 0);
+		SseClient client = client(10, SseOverflow.DROP_OLDEST);
+		Map<String, String> events = new LinkedHashMap<>();
+		events.put("foo/output", "foo");
+		events.put("bar/output", "bar");
+		Map<String, Long> cursors = new LinkedHashMap<>();
+		cursors.put("foo", -1L);
+		cursors.put("bar", 3L);
+		client.multiplex(events::get, cursors);
+		client.start(Collections.emptyList());
+		client.offer(foo.add(MessageBuilder.withPayload("hello").build()));
+		for (int i = 0; i < 5; i++) {
+			client.offer(bar.add(MessageBuilder.withPayload("world" + i).build()));
+		}
+		run();
+		// Only the ones that were not already seen
+		assertThat(frames).containsExactly("event:foo\nid:foo:0,bar:3\ndata:hello\n\n"
+				+ "event:bar\nid:foo:0,bar:4\ndata:world4\n\n");
+	}
+
+	@Test
+	public void flushCount() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			SseClient client = client(10, SseOverflow.DROP_OLDEST);
+			client.setFlushWindow(scheduler, 100000L, 2);
+			client.start(Collections.emptyList());
+			client.offer(entry("foo"));
+			// Waiting for the flush window
+			assertThat(tasks).isEmpty();
+			client.offer(entry("bar"));
+			client.offer(entry("spam"));
+			run();
+			assertThat(sent).containsExactly("foo", "bar");
+			assertThat(frames).hasSize(1);
+		}
+		finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void flushWindow() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			SseClient client = new SseClient(emitter(), Runnable::run, 10,
+					SseOverflow.DROP_OLDEST, payload -> payload.toString().getBytes());
+			client.setFlushWindow(scheduler, 50L, 10);
+			client.start(Collections.emptyList());
+			client.offer(entry("foo"));
+			client.offer(entry("bar"));
+			assertThat(sent).isEmpty();
+			Thread.sleep(200L);
+			synchronized (sent) {
+				assertThat(sent).containsExactly("foo", "bar");
+				assertThat(frames).hasSize(1);
+			}
+		}
+		finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void stalled() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		boolean[] completed = new boolean[1];
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter() {
+			@Override
+			public void send(Object data, MediaType type) throws IOException {
+				blocked.countDown();
+				try {
+					// A client that never reads
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void complete() {
+				completed[0] = true;
+			}
+		};
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		try {
+			SseClient client = new SseClient(emitter, writer, 10,
+					SseOverflow.DROP_OLDEST, payload -> payload.toString().getBytes());
+			client.setWriteTimeout(scheduler, 50L);
+			boolean[] closed = new boolean[1];
+			client.onClose(() -> closed[0] = true);
+			client.start(Collections.emptyList());
+			client.offer(entry("foo"));
+			assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+			Thread.sleep(200L);
+			// Disconnected while the write is still blocked
+			assertThat(client.isClosed()).isTrue();
+			assertThat(closed[0]).isTrue();
+			client.offer(entry("bar"));
+			release.countDown();
+			writer.shutdown();
+			assertThat(writer.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+			assertThat(completed[0]).isTrue();
+		}
+		finally {
+			release.countDown();
+			writer.shutdownNow();
+			scheduler.shutdownNow();
+		}
+	}
+
+	private List<String> overflow(SseOverflow overflow) {
+		return overflow(client(2, overflow));
+	}
+
+	private List<String> overflow(SseClient client) {
+		client.start(Collections.emptyList());
+		// Nothing is written until the tasks run, so the queue fills up
+		client.offer(entry("foo"));
+		client.offer(entry("bar"));
+		client.offer(entry("spam"));
+		run();
+		return sent;
+	}
+
+	private void run() {
+		while (!tasks.isEmpty()) {
+			tasks.remove(0).run();
+		}
+	}
+
+	private SseClient client(int capacity, SseOverflow overflow) {
+		return new SseClient(emitter(), tasks::add, capacity, overflow,
+				payload -> payload.toString().getBytes());
+	}
+
+	private ResponseBodyEmitter emitter() {
+		return new ResponseBodyEmitter() {
+			@Override
+			public void send(Object data, MediaType type) throws IOException {
+				synchronized (sent) {
+					String frame = new String((byte[]) data);
+					frames.add(frame);
+					for (String event : frame.split("\n\n")) {
+						sent.add(event.replaceAll("id:[0-9]*\n", "")
+								.replace("data:", ""));
+					}
+				}
+			}
+		};
+	}
+
+	private RouteBuffer.Entry entry(String payload) {
+		return buffer.add(MessageBuilder.withPayload(payload).build());
+	}
+
+}
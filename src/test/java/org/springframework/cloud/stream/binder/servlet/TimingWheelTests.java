@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class TimingWheelTests {
+
+	private List<String> due = new ArrayList<>();
+
+	private TimingWheel<String> wheel = new TimingWheel<>(10, 3, 0, due::add);
+
+	@Test
+	public void already() {
+		wheel.add(0, "foo");
+		assertThat(due).containsExactly("foo");
+	}
+
+	@Test
+	public void lowest() {
+		wheel.add(55, "foo");
+		wheel.tick(50);
+		assertThat(due).isEmpty();
+		wheel.tick(60);
+		assertThat(due).containsExactly("foo");
+	}
+
+	@Test
+	public void cascade() {
+		wheel.add(10_005, "foo");
+		wheel.add(700, "bar");
+		wheel.tick(690);
+		assertThat(due).isEmpty();
+		wheel.tick(700);
+		assertThat(due).containsExactly("bar");
+		wheel.tick(10_000);
+		assertThat(due).containsExactly("bar");
+		wheel.tick(10_010);
+		assertThat(due).containsExactly("bar", "foo");
+	}
+
+	@Test
+	public void overflow() {
+		// Beyond the top level (64^3 ticks)
+		long deadline = 3_000_000L;
+		wheel.add(deadline, "foo");
+		wheel.tick(deadline - 10);
+		assertThat(due).isEmpty();
+		wheel.tick(deadline);
+		assertThat(due).containsExactly("foo");
+	}
+
+	@Test
+	public void order() {
+		for (int i = 10; i > 0; i--) {
+			wheel.add(i * 1000, "foo" + i);
+		}
+		for (long now = 0; now <= 10_000; now += 10) {
+			wheel.tick(now);
+		}
+		assertThat(due).containsExactly("foo1", "foo2", "foo3", "foo4", "foo5", "foo6",
+				"foo7", "foo8", "foo9", "foo10");
+	}
+
+}
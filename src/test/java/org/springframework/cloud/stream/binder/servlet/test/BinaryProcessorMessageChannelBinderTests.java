@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.binder.servlet.MessageController;
+import org.springframework.cloud.stream.messaging.Processor;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author Dave Syer
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "spring.cloud.stream.binder.servlet.max-body-bytes=100000")
+@AutoConfigureMockMvc
+@DirtiesContext
+public class BinaryProcessorMessageChannelBinderTests {
+
+	@Autowired
+	private Processor processor;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Before
+	public void init() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+	}
+
+	@Test
+	public void function() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_OCTET_STREAM)
+						.content(new byte[] { 1, 2, 3 }))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().bytes(new byte[] { 3, 2, 1 }));
+	}
+
+	@Test
+	public void large() throws Exception {
+		byte[] body = new byte[99999];
+		body[0] = 1;
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_OCTET_STREAM).content(body))
+				.andReturn();
+		body[0] = 0;
+		body[body.length - 1] = 1;
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().bytes(body));
+	}
+
+	@Test
+	public void tooLarge() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_OCTET_STREAM)
+						.content(new byte[100001]))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isPayloadTooLarge());
+	}
+
+	@Test
+	public void supplier() throws Exception {
+		processor.output().send(MessageBuilder.withPayload(new byte[] { 1, 2 }).build());
+		processor.output().send(MessageBuilder.withPayload(new byte[] { 3 }).build());
+		mockMvc.perform(get("/stream/output").accept(MediaType.APPLICATION_OCTET_STREAM))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+				.andExpect(content().bytes(new byte[] { 1, 2 }))
+				.andExpect(header().string(MessageController.SEQUENCE, "0"));
+		mockMvc.perform(get("/stream/output?since=0")
+				.accept(MediaType.APPLICATION_OCTET_STREAM)).andExpect(status().isOk())
+				.andExpect(content().bytes(new byte[] { 3 }));
+	}
+
+	@Test
+	public void empty() throws Exception {
+		mockMvc.perform(get("/stream/output").accept(MediaType.APPLICATION_OCTET_STREAM))
+				.andExpect(status().isNoContent());
+	}
+
+	@SpringBootApplication
+	@EnableBinding(Processor.class)
+	protected static class TestConfiguration {
+		@StreamListener(Processor.INPUT)
+		@SendTo(Processor.OUTPUT)
+		public byte[] reverse(byte[] input) {
+			byte[] result = new byte[input.length];
+			for (int i = 0; i < input.length; i++) {
+				result[i] = input[input.length - 1 - i];
+			}
+			return result;
+		}
+	}
+
+}
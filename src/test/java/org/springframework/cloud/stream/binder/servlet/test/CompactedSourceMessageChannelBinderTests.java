@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.messaging.Source;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author Dave Syer
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "spring.cloud.stream.binder.servlet.bindings.output.compaction-key=sku")
+@AutoConfigureMockMvc
+@DirtiesContext
+public class CompactedSourceMessageChannelBinderTests {
+
+	@Autowired
+	private Source source;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Test
+	public void payload() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		source.output().send(
+				MessageBuilder.withPayload("{\"sku\":\"foo\",\"price\":101}").build());
+		source.output().send(
+				MessageBuilder.withPayload("{\"sku\":\"bar\",\"price\":201}").build());
+		source.output().send(
+				MessageBuilder.withPayload("{\"sku\":\"foo\",\"price\":102}").build());
+		mockMvc.perform(get("/stream/output")).andExpect(status().isOk())
+				.andExpect(content().string(allOf(containsString("102"),
+						containsString("201"), not(containsString("101")))));
+	}
+
+	@Test
+	public void header() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		source.output().send(MessageBuilder.withPayload("spam").setHeader("sku", "foo")
+				.build());
+		source.output().send(MessageBuilder.withPayload("eggs").setHeader("sku", "foo")
+				.build());
+		mockMvc.perform(get("/stream/output")).andExpect(status().isOk())
+				.andExpect(content().string(allOf(containsString("eggs"),
+						not(containsString("spam")))));
+	}
+
+	@SpringBootApplication
+	@EnableBinding(Source.class)
+	protected static class TestConfiguration {
+	}
+
+}
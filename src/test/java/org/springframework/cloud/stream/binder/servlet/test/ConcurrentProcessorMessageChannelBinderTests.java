@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.servlet.test;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.messaging.Processor;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author Dave Syer
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest("spring.cloud.stream.binder.servlet.bindings.input.concurrency:4")
+@AutoConfigureMockMvc
+@DirtiesContext
+public class ConcurrentProcessorMessageChannelBinderTests {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Test
+	public void multi() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("[\"one\",\"two\",\"three\",\"four\",\"five\",\"six\"]"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string(
+						"[\"ONE\",\"TWO\",\"THREE\",\"FOUR\",\"FIVE\",\"SIX\"]"));
+	}
+
+	@SpringBootApplication
+	@EnableBinding(Processor.class)
+	protected static class TestConfiguration {
+
+		private Random random = new Random();
+
+		@StreamListener(Processor.INPUT)
+		@SendTo(Processor.OUTPUT)
+		public String uppercase(String input) throws Exception {
+			// Finish in a random order
+			Thread.sleep(random.nextInt(20));
+			return input.toUpperCase();
+		}
+
+	}
+
+}
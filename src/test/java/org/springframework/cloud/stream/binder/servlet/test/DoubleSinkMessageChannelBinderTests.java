@@ -33,9 +33,11 @@ import org.springframework.messaging.SubscribableChannel;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -64,8 +66,10 @@ public class DoubleSinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void string() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(
-				post("/stream/input").contentType(MediaType.TEXT_PLAIN).content("hello"))
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.TEXT_PLAIN).content("hello"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
@@ -75,8 +79,10 @@ public class DoubleSinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void custom() throws Exception {
 		custom.input().subscribe(this);
-		mockMvc.perform(
-				post("/stream/custom").contentType(MediaType.TEXT_PLAIN).content("hello"))
+		MvcResult result = mockMvc.perform(post("/stream/custom")
+						.contentType(MediaType.TEXT_PLAIN).content("hello"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
@@ -32,8 +32,10 @@ import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
@@ -54,8 +56,10 @@ public class HeaderProcessorMessageChannelBinderTests {
 
 	@Test
 	public void function() throws Exception {
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(header().string("x-foo", "bar"))
 				.andExpect(content().string(containsString("HELLO")));
 	}
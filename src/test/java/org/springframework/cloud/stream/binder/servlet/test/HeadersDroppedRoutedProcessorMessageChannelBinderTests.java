@@ -31,8 +31,10 @@ import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
@@ -53,8 +55,10 @@ public class HeadersDroppedRoutedProcessorMessageChannelBinderTests {
 
 	@Test
 	public void function() throws Exception {
-		mockMvc.perform(post("/stream/input/words")
-				.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+		MvcResult result = mockMvc.perform(post("/stream/input/words")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isOk())
 				.andExpect(header().string(MessageController.ROUTE_KEY, "words"))
 				.andExpect(content().string(containsString("HELLO")));
@@ -30,8 +30,10 @@ import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -51,15 +53,19 @@ public class NamedProcessorMessageChannelBinderTests {
 
 	@Test
 	public void function() throws Exception {
-		mockMvc.perform(post("/stream/words").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream/words")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
 	@Test
 	public void implicit() throws Exception {
-		mockMvc.perform(post("/stream").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
@@ -24,14 +24,17 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.binder.servlet.MessageController;
 import org.springframework.cloud.stream.messaging.Processor;
 import org.springframework.http.MediaType;
 import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -51,25 +54,45 @@ public class PojoProcessorMessageChannelBinderTests {
 
 	@Test
 	public void json() throws Exception {
-		mockMvc.perform(post("/stream").contentType(MediaType.APPLICATION_JSON)
-				.content("{\"value\":\"hello\"}")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"value\":\"hello\"}"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
 	@Test
 	public void text() throws Exception {
-		mockMvc.perform(post("/stream").contentType(MediaType.TEXT_PLAIN)
-				.content("[{\"value\":\"hello\"}]")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MediaType.TEXT_PLAIN)
+						.content("[{\"value\":\"hello\"}]"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
 	@Test
 	public void single() throws Exception {
-		mockMvc.perform(post("/stream").contentType(MediaType.TEXT_PLAIN)
-				.content("{\"value\":\"hello\"}")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MediaType.TEXT_PLAIN)
+						.content("{\"value\":\"hello\"}"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
+	@Test
+	public void lines() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MessageController.NDJSON)
+						.content("{\"value\":\"hello\"}\n{\"value\":\"world\"}"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string(containsString("HELLO")))
+				.andExpect(content().string(containsString("WORLD")));
+	}
+
 	@SpringBootApplication
 	@EnableBinding(Processor.class)
 	protected static class TestConfiguration {
@@ -31,8 +31,10 @@ import org.springframework.messaging.MessagingException;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -58,8 +60,11 @@ public class PojoSinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void consumer() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("{\"value\":\"hello\"}")).andExpect(status().isAccepted())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"value\":\"hello\"}"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isAccepted())
 				.andExpect(content().string("{\"value\":\"hello\"}"));
 		assertThat(this.message).isNotNull();
 		sink.input().unsubscribe(this);
@@ -68,8 +73,11 @@ public class PojoSinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void multi() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("[{\"value\":\"hello\"},{\"value\":\"world\"}]"))
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("[{\"value\":\"hello\"},{\"value\":\"world\"}]"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isAccepted()).andExpect(content()
 						.string("[{\"value\":\"hello\"}, {\"value\":\"world\"}]"));
 		assertThat(this.message).isNotNull();
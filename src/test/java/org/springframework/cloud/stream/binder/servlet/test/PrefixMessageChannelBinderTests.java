@@ -31,9 +31,11 @@ import org.springframework.messaging.MessagingException;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -59,8 +61,10 @@ public class PrefixMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void consumer() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(post("/awesome/input").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isAccepted())
+		MvcResult result = mockMvc.perform(post("/awesome/input")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
 		sink.input().unsubscribe(this);
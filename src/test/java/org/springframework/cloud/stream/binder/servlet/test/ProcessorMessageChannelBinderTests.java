@@ -26,6 +26,7 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.binder.servlet.MessageController;
 import org.springframework.cloud.stream.messaging.Processor;
 import org.springframework.http.MediaType;
 import org.springframework.messaging.handler.annotation.SendTo;
@@ -33,12 +34,16 @@ import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -86,8 +91,10 @@ public class ProcessorMessageChannelBinderTests {
 
 	@Test
 	public void function() throws Exception {
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
@@ -99,25 +106,79 @@ public class ProcessorMessageChannelBinderTests {
 
 	@Test
 	public void implicit() throws Exception {
-		mockMvc.perform(post("/stream").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
 
 	@Test
 	public void string() throws Exception {
-		mockMvc.perform(
-				post("/stream/input").contentType(MediaType.TEXT_PLAIN).content("hello"))
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.TEXT_PLAIN).content("hello"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isOk()).andExpect(content().string(equalTo("HELLO")));
 	}
 
 	@Test
 	public void multi() throws Exception {
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("[\"hello\",\"world\"]")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("[\"hello\",\"world\"]"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(content().string("[\"HELLO\",\"WORLD\"]"));
 	}
 
+	@Test
+	public void lines() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MessageController.NDJSON)
+						.content("\"hello\"\n\n\"world\"\n"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string("[\"HELLO\",\"WORLD\"]"));
+	}
+
+	@Test
+	public void ndjson() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON)
+						.accept(MessageController.NDJSON)
+						.content("[\"hello\",\"world\"]"))
+				.andExpect(request().asyncStarted()).andReturn();
+		result.getAsyncResult(10000L);
+		assertThat(result.getResponse().getContentType())
+				.startsWith(MessageController.NDJSON_VALUE);
+		assertThat(result.getResponse().getContentAsString())
+				.isEqualTo("\"HELLO\"\n\"WORLD\"\n");
+	}
+
+	@Test
+	public void ndjsonLines() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MessageController.NDJSON)
+						.accept(MessageController.NDJSON)
+						.content("\"hello\"\n\"world\"\n"))
+				.andExpect(request().asyncStarted()).andReturn();
+		result.getAsyncResult(10000L);
+		assertThat(result.getResponse().getContentAsString())
+				.isEqualTo("\"HELLO\"\n\"WORLD\"\n");
+	}
+
+	@Test
+	public void sse() throws Exception {
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.TEXT_PLAIN)
+						.accept(MediaType.TEXT_EVENT_STREAM).content("hello"))
+				.andExpect(request().asyncStarted()).andReturn();
+		result.getAsyncResult(10000L);
+		assertThat(result.getResponse().getContentAsString())
+				.isEqualTo("data:HELLO\n\n");
+	}
+
 	@SpringBootApplication
 	@EnableBinding(Processor.class)
 	protected static class TestConfiguration {
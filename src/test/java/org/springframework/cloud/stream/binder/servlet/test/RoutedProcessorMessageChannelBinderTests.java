@@ -33,8 +33,10 @@ import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
@@ -56,8 +58,10 @@ public class RoutedProcessorMessageChannelBinderTests {
 
 	@Test
 	public void function() throws Exception {
-		mockMvc.perform(post("/stream/input/words")
-				.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+		MvcResult result = mockMvc.perform(post("/stream/input/words")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isOk())
 				.andExpect(header().string(MessageController.ROUTE_KEY, "words"))
 				.andExpect(content().string(containsString("HELLO")));
@@ -79,8 +83,10 @@ public class RoutedProcessorMessageChannelBinderTests {
 
 	@Test
 	public void implicit() throws Exception {
-		mockMvc.perform(post("/stream/words").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isOk())
+		MvcResult result = mockMvc.perform(post("/stream/words")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
 				.andExpect(header().string(MessageController.ROUTE_KEY, "words"))
 				.andExpect(content().string(containsString("HELLO")));
 	}
@@ -30,7 +30,10 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -40,7 +43,9 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  *
  */
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = {
+		"spring.cloud.stream.binder.servlet.bindings.output.indexed-headers=type",
+		"spring.cloud.stream.binder.servlet.bindings.output.spill-threshold=2" })
 @AutoConfigureMockMvc
 @DirtiesContext
 public class RoutedSourceMessageChannelBinderTests {
@@ -67,6 +72,71 @@ public class RoutedSourceMessageChannelBinderTests {
 				.andExpect(content().string(containsString("hello")));
 	}
 
+	@Test
+	public void pattern() throws Exception {
+		source.output().send(MessageBuilder.withPayload("foo")
+				.setHeader(MessageController.ROUTE_KEY, "orders/eu/1").build());
+		source.output().send(MessageBuilder.withPayload("bar")
+				.setHeader(MessageController.ROUTE_KEY, "orders/us/1").build());
+		source.output().send(MessageBuilder.withPayload("spam")
+				.setHeader(MessageController.ROUTE_KEY, "customers/eu/1").build());
+		mockMvc.perform(get("/stream/output/orders/**")).andExpect(status().isOk())
+				.andExpect(content().string(allOf(containsString("foo"),
+						containsString("bar"), not(containsString("spam")))));
+		mockMvc.perform(get("/stream/output/orders/eu/*"))
+				.andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[\"foo\"]")));
+	}
+
+	@Test
+	public void spill() throws Exception {
+		for (String payload : new String[] { "foo", "bar", "spam" }) {
+			source.output().send(MessageBuilder.withPayload(payload)
+					.setHeader(MessageController.ROUTE_KEY, "spilled").build());
+		}
+		// Only 2 are kept in memory, the oldest one is read back from the file
+		mockMvc.perform(get("/stream/output/spilled")).andExpect(status().isOk())
+				.andExpect(content().string(allOf(containsString("foo"),
+						containsString("bar"), containsString("spam"))));
+	}
+
+	@Test
+	public void filter() throws Exception {
+		source.output().send(MessageBuilder.withPayload("foo")
+				.setHeader(MessageController.ROUTE_KEY, "filtered")
+				.setHeader("type", "order").build());
+		source.output().send(MessageBuilder.withPayload("bar")
+				.setHeader(MessageController.ROUTE_KEY, "filtered")
+				.setHeader("type", "customer").build());
+		mockMvc.perform(get("/stream/output/filtered").param("filter",
+				"headers.type=='order'")).andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[\"foo\"]")));
+		mockMvc.perform(get("/stream/output/filtered").param("filter", "headers.type=="))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void header() throws Exception {
+		source.output().send(MessageBuilder.withPayload("foo")
+				.setHeader(MessageController.ROUTE_KEY, "indexed")
+				.setHeader("type", "order").setHeader("tenant", "acme").build());
+		source.output().send(MessageBuilder.withPayload("bar")
+				.setHeader(MessageController.ROUTE_KEY, "indexed")
+				.setHeader("type", "order").setHeader("tenant", "other").build());
+		mockMvc.perform(get("/stream/output/indexed").param("header", "type:order")
+				.param("header", "tenant:acme")).andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[\"foo\"]")));
+		mockMvc.perform(get("/stream/output/indexed").param("header", "type"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void invalidPattern() throws Exception {
+		mockMvc.perform(get("/stream/output/orders/**/1"))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("'**'")));
+	}
+
 	@SpringBootApplication
 	@EnableBinding(Source.class)
 	protected static class TestConfiguration {
@@ -33,8 +33,10 @@ import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
@@ -59,8 +61,10 @@ public class SinkAndProcessorMessageChannelBinderTests {
 	@Test
 	public void function() throws Exception {
 		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
-		mockMvc.perform(post("/stream/input/words")
-				.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+		MvcResult result = mockMvc.perform(post("/stream/input/words")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isOk())
 				.andExpect(content().string(containsString("HELLO")));
 	}
@@ -68,8 +72,10 @@ public class SinkAndProcessorMessageChannelBinderTests {
 	@Test
 	public void consumer() throws Exception {
 		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
-		mockMvc.perform(post("/stream/input/accept")
-				.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+		MvcResult result = mockMvc.perform(post("/stream/input/accept")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 	}
@@ -31,9 +31,11 @@ import org.springframework.messaging.MessagingException;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -59,8 +61,10 @@ public class SinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void consumer() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("\"hello\"")).andExpect(status().isAccepted())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON).content("\"hello\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
 		sink.input().unsubscribe(this);
@@ -69,8 +73,11 @@ public class SinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void multi() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(post("/stream/input").contentType(MediaType.APPLICATION_JSON)
-				.content("[\"hello\",\"world\"]")).andExpect(status().isAccepted())
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("[\"hello\",\"world\"]"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("[\"hello\",\"world\"]")));
 		assertThat(this.message).isNotNull();
 		sink.input().unsubscribe(this);
@@ -79,8 +86,10 @@ public class SinkMessageChannelBinderTests implements MessageHandler {
 	@Test
 	public void string() throws Exception {
 		sink.input().subscribe(this);
-		mockMvc.perform(
-				post("/stream/input").contentType(MediaType.TEXT_PLAIN).content("hello"))
+		MvcResult result = mockMvc.perform(post("/stream/input")
+						.contentType(MediaType.TEXT_PLAIN).content("hello"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
 				.andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
@@ -91,8 +100,10 @@ public class SinkMessageChannelBinderTests implements MessageHandler {
 	public void missing() throws Exception {
 		sink.input().subscribe(this);
 		// It gets routed to "input" channel with key "missing"
-		mockMvc.perform(post("/stream/missing").contentType(MediaType.TEXT_PLAIN)
-				.content("hello")).andExpect(status().isAccepted())
+		MvcResult result = mockMvc.perform(post("/stream/missing")
+						.contentType(MediaType.TEXT_PLAIN).content("hello"))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isAccepted())
 				.andExpect(content().string(containsString("hello")));
 		assertThat(this.message).isNotNull();
 		sink.input().unsubscribe(this);
@@ -22,17 +22,22 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.servlet.MessageController;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -79,6 +84,59 @@ public class SourceMessageChannelBinderTests {
 				.andExpect(content().string(containsString("[]")));
 	}
 
+	@Test
+	public void since() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		source.output().send(MessageBuilder.withPayload("hello").build());
+		String sequence = mockMvc.perform(get("/stream/output"))
+				.andExpect(status().isOk())
+				.andExpect(content().string(containsString("hello"))).andReturn()
+				.getResponse().getHeader(MessageController.SEQUENCE);
+		source.output().send(MessageBuilder.withPayload("world").build());
+		mockMvc.perform(get("/stream/output?since=" + sequence))
+				.andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[\"world\"]")));
+	}
+
+	@Test
+	public void await() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		MvcResult result = mockMvc.perform(get("/stream/output?wait=10000"))
+				.andExpect(request().asyncStarted()).andReturn();
+		source.output().send(MessageBuilder.withPayload("hello").build());
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string(containsString("hello")));
+	}
+
+	@Test
+	public void awaitZero() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		MvcResult result = mockMvc.perform(get("/stream/output?wait=0")).andReturn();
+		// The result is already available, without waiting for a message
+		assertThat(result.getAsyncResult(0)).isNotNull();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[]")));
+	}
+
+	@Test
+	public void awaitNegative() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		MvcResult result = mockMvc.perform(get("/stream/output?wait=-1")).andReturn();
+		// The result is already available, without waiting for a message
+		assertThat(result.getAsyncResult(0)).isNotNull();
+		mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().string(equalTo("[]")));
+	}
+
+	@Test
+	public void awaitClamped() throws Exception {
+		mockMvc.perform(get("/stream/output?purge=true")).andReturn();
+		MvcResult result = mockMvc.perform(get("/stream/output?wait=" + Long.MAX_VALUE))
+				.andExpect(request().asyncStarted()).andReturn();
+		// The container times the request out after the maximum wait
+		assertThat(result.getRequest().getAsyncContext().getTimeout()).isEqualTo(60000L);
+	}
+
 	@Test
 	public void missing() throws Exception {
 		// Missing route is just empty
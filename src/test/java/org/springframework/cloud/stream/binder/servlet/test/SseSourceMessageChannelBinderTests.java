@@ -33,6 +33,7 @@ import org.springframework.boot.context.embedded.LocalServerPort;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.binder.servlet.MessageController;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -46,7 +47,6 @@ import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
-import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -74,6 +74,8 @@ public class SseSourceMessageChannelBinderTests {
 
 	private String message = null;
 
+	private String route = null;
+
 	@Before
 	public void init() throws Exception {
 		rest.getForEntity(
@@ -93,7 +95,88 @@ public class SseSourceMessageChannelBinderTests {
 		assertThat(response.getHeaders().getContentType())
 				.isGreaterThan(MediaType.TEXT_EVENT_STREAM);
 		assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
-		assertThat(response.getBody()).isEqualTo("data:hello\n\n");
+		assertThat(response.getBody()).matches("id:[0-9]+\ndata:hello\n\n");
+	}
+
+	@Test
+	public void resume() throws Exception {
+		source.output().send(MessageBuilder.withPayload("foo").build());
+		source.output().send(MessageBuilder.withPayload("bar").build());
+		rest.getInterceptors().add(new NonClosingInterceptor());
+		ResponseEntity<String> response = rest.execute(
+				new URI("http://localhost:" + port + "/stream/output"), HttpMethod.GET,
+				request -> request.getHeaders()
+						.setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM)),
+				this::extract);
+		assertThat(response.getBody()).matches("id:[0-9]+\ndata:foo\n\n(?s).*");
+		String id = response.getBody().substring(3, response.getBody().indexOf("\n"));
+		response = rest.execute(
+				new URI("http://localhost:" + port + "/stream/output"), HttpMethod.GET,
+				request -> {
+					request.getHeaders()
+							.setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM));
+					request.getHeaders().set(MessageController.LAST_EVENT_ID, id);
+				}, this::extract);
+		assertThat(response.getBody())
+				.isEqualTo("id:" + (Long.valueOf(id) + 1) + "\ndata:bar\n\n");
+	}
+
+	@Test
+	public void multiplex() throws Exception {
+		source.output().send(MessageBuilder.withPayload("hello")
+				.setHeader(MessageController.ROUTE_KEY, "foo").build());
+		source.output().send(MessageBuilder.withPayload("world")
+				.setHeader(MessageController.ROUTE_KEY, "bar").build());
+		rest.getInterceptors().add(new NonClosingInterceptor());
+		URI uri = new URI(
+				"http://localhost:" + port + "/stream/output?route=foo&route=bar");
+		ResponseEntity<String> response = rest.execute(uri, HttpMethod.GET,
+				request -> request.getHeaders()
+						.setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM)),
+				this::extract);
+		assertThat(response.getBody())
+				.matches("event:foo\nid:foo:[0-9]+\ndata:hello\n\n(?s).*");
+		String id = response.getBody().split("\n")[1].substring(3);
+		// Resume after the first event, so only the second one is sent
+		response = rest.execute(uri, HttpMethod.GET, request -> {
+			request.getHeaders().setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM));
+			request.getHeaders().set(MessageController.LAST_EVENT_ID, id);
+		}, this::extract);
+		assertThat(response.getBody())
+				.matches("event:bar\nid:" + id + ",bar:[0-9]+\ndata:world\n\n");
+	}
+
+	@Test
+	public void multiplexFromTheFuture() throws Exception {
+		source.output().send(MessageBuilder.withPayload("hello")
+				.setHeader(MessageController.ROUTE_KEY, "spam").build());
+		message = "world";
+		route = "spam";
+		rest.getInterceptors().add(new NonClosingInterceptor());
+		URI uri = new URI("http://localhost:" + port + "/stream/output?route=spam");
+		// E.g. an id from before a restart: the live events are still sent
+		ResponseEntity<String> response = rest.execute(uri, HttpMethod.GET, request -> {
+			request.getHeaders().setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM));
+			request.getHeaders().set(MessageController.LAST_EVENT_ID, "spam:999999999");
+		}, this::extract);
+		assertThat(response.getBody()).isEqualTo("event:spam\nid:spam:1\ndata:world\n\n");
+	}
+
+	@Test
+	public void pattern() throws Exception {
+		source.output().send(MessageBuilder.withPayload("hello")
+				.setHeader(MessageController.ROUTE_KEY, "orders/eu").build());
+		source.output().send(MessageBuilder.withPayload("world")
+				.setHeader(MessageController.ROUTE_KEY, "customers/eu").build());
+		rest.getInterceptors().add(new NonClosingInterceptor());
+		ResponseEntity<String> response = rest.execute(
+				new URI("http://localhost:" + port + "/stream/output/orders/*"),
+				HttpMethod.GET,
+				request -> request.getHeaders()
+						.setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM)),
+				this::extract);
+		assertThat(response.getBody())
+				.matches("event:orders/eu\nid:orders/eu:[0-9]+\ndata:hello\n\n");
 	}
 
 	@Test
@@ -108,7 +191,7 @@ public class SseSourceMessageChannelBinderTests {
 		assertThat(response.getHeaders().getContentType())
 				.isGreaterThan(MediaType.TEXT_EVENT_STREAM);
 		assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
-		assertThat(response.getBody()).isEqualTo("data:world\n\n");
+		assertThat(response.getBody()).matches("id:[0-9]+\ndata:world\n\n");
 	}
 
 	@SpringBootApplication
@@ -120,13 +203,13 @@ public class SseSourceMessageChannelBinderTests {
 			throws IOException {
 		if (message != null) {
 			// Once there is an incoming request we can send a message to it
-			source.output().send(MessageBuilder.withPayload(message).build());
+			source.output().send(MessageBuilder.withPayload(message)
+					.setHeader(MessageController.ROUTE_KEY, route).build());
 		}
 		byte[] bytes = new byte[1024];
 		StringBuilder builder = new StringBuilder();
 		int read = 0;
-		while (read >= 0
-				&& StringUtils.countOccurrencesOf(builder.toString(), "\n") < 2) {
+		while (read >= 0 && !builder.toString().contains("\n\n")) {
 			read = response.getBody().read(bytes, 0, bytes.length);
 			if (read > 0) {
 				latch.countDown();